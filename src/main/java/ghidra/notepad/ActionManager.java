@@ -202,6 +202,17 @@ public class ActionManager {
         configureAction("Navigate", forwardAction, "Forward",
             KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, InputEvent.ALT_DOWN_MASK),
             "/images/forward.png", "Go forward");
+
+        // Diagnostics (menu only)
+        DockingAction diagnosticsAction = new DockingAction("Show Diagnostics", provider.getName()) {
+            @Override
+            public void actionPerformed(ActionContext context) {
+                provider.showDiagnostics();
+            }
+        };
+        diagnosticsAction.setMenuBarData(new MenuData(new String[] { "View", "Diagnostics..." }));
+        diagnosticsAction.setDescription("Show editor listener counts and cache usage");
+        provider.addLocalAction(diagnosticsAction);
     }
 
     private void configureAction(String section, DockingAction action, String menuName, 
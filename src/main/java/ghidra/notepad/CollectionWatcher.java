@@ -0,0 +1,175 @@
+package ghidra.notepad;
+
+import ghidra.util.Msg;
+
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches every directory of a collection and reports files and directories
+ * created, deleted or modified on disk — by the notepad itself or by anything
+ * else, such as a git pull. Directories created later are watched as soon as
+ * they appear, and their existing contents reported as created. Changes inside
+ * the collection's cache directory are ignored.
+ *
+ * <p>Directories are registered on the watcher's own thread. One that cannot be
+ * registered, for instance once the system's watch limit is reached, is skipped
+ * and changes in it go unnoticed. Events from one directory are delivered
+ * together on the EDT.
+ */
+public class CollectionWatcher {
+
+    public interface ChangeListener {
+        void pathCreated(Path path);
+
+        void pathDeleted(Path path);
+
+        void pathModified(Path path);
+
+        /** Events were lost; the collection has to be re-read in full. */
+        void changesLost();
+    }
+
+    private record Change(WatchEvent.Kind<?> kind, Path path) {}
+
+    private final ChangeListener listener;
+    private WatchService watchService;
+
+    public CollectionWatcher(ChangeListener listener) {
+        this.listener = listener;
+    }
+
+    /** Starts watching a collection, replacing the one watched before. */
+    public synchronized void watch(Path collection) {
+        stop();
+        try {
+            WatchService service = collection.getFileSystem().newWatchService();
+            watchService = service;
+            Thread thread = new Thread(() -> run(service, collection),
+                "Markdown Notepad Collection Watcher");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException e) {
+            Msg.error(this, "Could not watch " + collection, e);
+        }
+    }
+
+    public synchronized void stop() {
+        if (watchService == null) return;
+        try {
+            watchService.close();  // wakes the thread with ClosedWatchServiceException
+        } catch (IOException e) {
+            Msg.error(this, "Could not stop watching the collection", e);
+        }
+        watchService = null;
+    }
+
+    private void run(WatchService service, Path collection) {
+        Map<WatchKey, Path> keys = new HashMap<>();
+        try {
+            registerTree(service, collection, collection, keys, null);
+        } catch (IOException e) {
+            Msg.error(this, "Could not watch " + collection, e);
+            return;
+        } catch (ClosedWatchServiceException e) {
+            return;
+        }
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path dir = keys.get(key);
+                List<Change> changes = new ArrayList<>();
+                boolean lost = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        lost = true;
+                        continue;
+                    }
+                    if (dir == null) continue;
+                    Path path = dir.resolve((Path) event.context());
+                    if (FileOperations.isCachePath(collection, path)) continue;
+                    changes.add(new Change(event.kind(), path));
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        // Anything written before the new directory was registered has no event of its own
+                        try {
+                            registerTree(service, collection, path, keys, changes);
+                        } catch (IOException e) {
+                            // Removed again before it could be registered; its delete event follows
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    keys.remove(key);
+                }
+                deliver(changes, lost);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Registers a directory and everything below it, recording their contents when
+     * asked. Directories that cannot be registered are still walked, so their
+     * contents are recorded, and are reported once at the end.
+     */
+    private void registerTree(WatchService service, Path collection, Path start,
+                              Map<WatchKey, Path> keys, List<Change> found) throws IOException {
+        List<Path> unwatched = new ArrayList<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (FileOperations.isCachePath(collection, dir)) return FileVisitResult.SKIP_SUBTREE;
+                try {
+                    keys.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                } catch (IOException e) {
+                    unwatched.add(dir);
+                }
+                if (found != null && !dir.equals(start)) found.add(new Change(ENTRY_CREATE, dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (found != null) found.add(new Change(ENTRY_CREATE, file));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (!unwatched.isEmpty()) {
+            Msg.warn(this, "Could not watch " + unwatched.size() + " directories under " + start +
+                " (first: " + unwatched.get(0) + "); changes made in them outside the notepad are not shown");
+        }
+    }
+
+    private void deliver(List<Change> changes, boolean lost) {
+        if (changes.isEmpty() && !lost) return;
+        SwingUtilities.invokeLater(() -> {
+            if (lost) {
+                listener.changesLost();
+                return;
+            }
+            for (Change change : changes) {
+                if (change.kind() == ENTRY_CREATE) {
+                    listener.pathCreated(change.path());
+                } else if (change.kind() == ENTRY_DELETE) {
+                    listener.pathDeleted(change.path());
+                } else {
+                    listener.pathModified(change.path());
+                }
+            }
+        });
+    }
+}
@@ -1,27 +1,29 @@
 package ghidra.notepad;
 
-import ghidra.app.decompiler.ClangTokenGroup;
-import ghidra.app.decompiler.DecompileResults;
 import ghidra.program.model.listing.Function;
+import ghidra.program.model.listing.Program;
+import ghidra.util.Msg;
 
 import generic.theme.Gui;
 import org.commonmark.node.Node;
-import org.commonmark.parser.Parser;
-import org.commonmark.renderer.html.HtmlRenderer;
+
+import ghidra.notepad.ParsedDocument.Block;
+import ghidra.notepad.ParsedDocument.BlockKey;
+import ghidra.notepad.ParsedDocument.Embed;
 
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.html.*;
 import java.awt.*;
 import java.awt.Desktop;
 import java.awt.Rectangle;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URI;
 import java.nio.file.*;
 import java.util.*;
 import java.util.List;
-import java.util.regex.*;
-import javax.imageio.ImageIO;
+import java.util.concurrent.*;
 
 /**
  * Composite preview panel that renders markdown content with optional inline
@@ -34,17 +36,23 @@ import javax.imageio.ImageIO;
  *   <li>{addr}[N]   — embed line N only</li>
  *   <li>{addr}[N-M] — embed lines N–M inclusive</li>
  * </ul>
+ *
+ * <p>Only sections near the viewport have live HTML panes or decompiler panels;
+ * the rest are empty slots of their last known height, so long notes cost about
+ * as much to lay out and paint as short ones.
  */
 public class CompositePreviewPanel extends JPanel {
 
-    // Matches {addr}[], {addr}[N], or {addr}[N-M]  — single braces, brackets required
-    private static final Pattern EMBED_PATTERN = Pattern.compile(
-        "\\{(0x[0-9a-fA-F]+|[0-9a-fA-F]+)\\}\\[(\\d*)(?:-(\\d+))?\\]");
+    // Changed blocks a render prepares up front; the rest wait until they scroll into view
+    private static final int MAX_EAGER_BLOCKS = 8;
+
+    // Sections within this many screens of the viewport are shown, and their embeds decompiled
+    private static final int PREFETCH_SCREENS = 1;
+    // Shown sections are only recycled beyond this distance, so small scrolls do not thrash
+    private static final int RECYCLE_SCREENS = 3;
 
     private final JPanel innerPanel;
     private final JScrollPane scrollPane;
-    private final Parser markdownParser;
-    private final HtmlRenderer htmlRenderer;
     private final JPanel parentPanel;
 
     private Path currentFile;
@@ -52,11 +60,40 @@ public class CompositePreviewPanel extends JPanel {
     private AddressNavigationHandler navigationHandler;
     private FunctionNameResolver functionNameResolver;
     private DecompilationCallback decompilationCallback;
-    private float zoomFactor = 1.0f;
-
-    // Cache decompiler output by address so we don't re-decompile on every keystroke
-    private final Map<String, DecompOutput> decompCache = new HashMap<>();
-    private String lastRenderedContent = null;
+    private volatile float zoomFactor = 1.0f;
+    private final Object htmlStyleLock = new Object();
+    private HtmlStyle htmlStyle; // guarded by htmlStyleLock
+
+    // Decompiler output by program and address so we don't re-decompile on every keystroke.
+    // Holds the in-flight job too, so every embed of one address shares a single decompilation.
+    private final DecompileCache decompCache = new DecompileCache();
+    private final ThreadPoolExecutor decompExecutor = new ThreadPoolExecutor(
+        2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "Markdown Preview Decompiler");
+            t.setDaemon(true);
+            return t;
+        });
+    // The revision on screen, or being rendered
+    private ParsedDocument renderedDocument;
+    // Function names of the latest render, for blocks prepared after it; render thread only
+    private Map<String, String> functionNames = Map.of();
+
+    // Display-sized copies of note images, shared by every HTML pane
+    private final ScaledImageCache scaledImages = new ScaledImageCache();
+
+    // Sections from the last render keyed by block content, reused when a block is unchanged.
+    // Only touched on the EDT; render jobs work from a snapshot of its keys.
+    private Map<BlockKey, Section> renderedBlocks = new HashMap<>();
+    private boolean visibilityUpdatePending;
+
+    // Single-flight render pipeline: at most one job runs, and a newer edit cancels it
+    private final ExecutorService renderExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Markdown Preview Renderer");
+        t.setDaemon(true);
+        return t;
+    });
+    private Future<?> renderJob;
+    private long renderGeneration;
 
     public interface AddressNavigationHandler {
         void navigateToAddress(String address);
@@ -64,41 +101,88 @@ public class CompositePreviewPanel extends JPanel {
 
     public interface FunctionNameResolver {
         String getFunctionName(String address);
+
+        /** Resolves several addresses together; the default looks each one up in turn. */
+        default Map<String, String> getFunctionNames(Collection<String> addresses) {
+            Map<String, String> names = new HashMap<>();
+            for (String address : addresses) {
+                names.put(address, getFunctionName(address));
+            }
+            return names;
+        }
     }
 
-    /** Carries the Function, token markup, and plain C text (for indentation). */
-    public record DecompOutput(Function function, ClangTokenGroup markup, String cText) {}
+    /** Carries the Function and its formatted output. */
+    public record DecompOutput(Function function, DecompSnapshot snapshot) {}
 
     public interface DecompilationCallback {
-        DecompOutput decompile(String address);
+        /** The program embeds are decompiled against, or null if none is open. */
+        Program getCurrentProgram();
+
+        DecompOutput decompile(Program program, String address);
+
+        /** Called on a background thread when program edits make earlier output for these addresses stale. */
+        default void decompilationsInvalidated(Program program, Set<String> addresses) {}
+    }
+
+    /** An HTML block parsed into a Swing document off the EDT, ready to be shown in a pane. */
+    private record PreparedHtml(HTMLEditorKit kit, HTMLDocument document) {}
+
+    /** The theme colors the preview stylesheet is built from; equal colors give an equal stylesheet. */
+    private record ThemeColors(Color header, Color bold, Color italic, Color link, Color code,
+                               Color blockquote, Color background, Color foreground) {
+        static ThemeColors current() {
+            return new ThemeColors(
+                Gui.getColor("color.fg.decompiler.function.name"),
+                Gui.getColor("color.fg.decompiler.keyword"),
+                Gui.getColor("color.fg.decompiler.type"),
+                Gui.getColor("color.fg.decompiler.variable"),
+                Gui.getColor("color.fg.decompiler.comment"),
+                Gui.getColor("color.fg.decompiler.global"),
+                Gui.getColor("color.bg"),
+                Gui.getColor("color.fg"));
+        }
     }
 
-    private static final class EmbedSpec {
-        final String address;
-        final Integer startLine;
-        final Integer endLine;
+    /** A stylesheet built for one theme and zoom, and the kit every HTML pane is cloned from. */
+    private record HtmlStyle(ThemeColors colors, float zoom, HTMLEditorKit kit) {}
+
+    /**
+     * Gives its documents the preview stylesheet in place of the application-wide
+     * default, which HTMLEditorKit.setStyleSheet would change for every kit.
+     */
+    private static final class PreviewEditorKit extends HTMLEditorKit {
+        private final StyleSheet styles;
 
-        EmbedSpec(String address, Integer startLine, Integer endLine) {
-            this.address = address;
-            this.startLine = startLine;
-            this.endLine = endLine;
+        PreviewEditorKit(StyleSheet styles) {
+            this.styles = styles;
+        }
+
+        @Override
+        public StyleSheet getStyleSheet() {
+            return styles;
         }
     }
 
-    public CompositePreviewPanel(Parser markdownParser, HtmlRenderer htmlRenderer, JPanel parentPanel) {
+    public CompositePreviewPanel(JPanel parentPanel) {
         super(new BorderLayout());
-        this.markdownParser = markdownParser;
-        this.htmlRenderer = htmlRenderer;
         this.parentPanel = parentPanel;
 
         innerPanel = new ScrollablePanel();
         innerPanel.setLayout(new BoxLayout(innerPanel, BoxLayout.Y_AXIS));
         innerPanel.setBackground(Gui.getColor("color.bg"));
 
+        decompCache.setInvalidationListener((program, addresses) -> {
+            DecompilationCallback callback = decompilationCallback;
+            if (callback != null) callback.decompilationsInvalidated(program, addresses);
+            SwingUtilities.invokeLater(() -> refreshEmbeds(addresses));
+        });
+
         scrollPane = new JScrollPane(innerPanel);
         scrollPane.setBorder(null);
         scrollPane.getVerticalScrollBar().setUnitIncrement(16);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        scrollPane.getViewport().addChangeListener(e -> scheduleVisibilityUpdate());
 
         add(scrollPane, BorderLayout.CENTER);
     }
@@ -118,11 +202,22 @@ public class CompositePreviewPanel extends JPanel {
     }
 
     public void setCurrentFile(Path file) {
+        if (!Objects.equals(this.currentFile, file)) {
+            // Relative image paths resolve against the file, so cached HTML is no longer valid
+            invalidateHtmlBlocks();
+            // The old note's queued decompilations are no longer needed
+            for (Section section : renderedBlocks.values()) {
+                if (section.decompilation != null && !section.decompilation.isDone()) {
+                    recycle(section);
+                }
+            }
+        }
         this.currentFile = file;
     }
 
     public void setCurrentDirectory(Path dir) {
         this.currentDirectory = dir;
+        scaledImages.setCollection(dir);
     }
 
     public void setZoomFactor(float factor) {
@@ -131,13 +226,73 @@ public class CompositePreviewPanel extends JPanel {
     }
 
     private void applyZoomToEmbeds() {
-        for (Component c : innerPanel.getComponents()) {
-            if (c instanceof EmbeddedDecompilerPanel ep) ep.setZoomFactor(zoomFactor);
+        for (Section section : renderedBlocks.values()) {
+            if (section.content instanceof EmbeddedDecompilerPanel ep) {
+                ep.setZoomFactor(zoomFactor);
+            } else if (section.content == null && section.block.embed() != null) {
+                section.height = estimateHeight(section.block);
+            }
         }
     }
 
-    public void clearDecompCache() {
-        decompCache.clear();
+    /** Limits the total pixels of downscaled preview images held in memory. */
+    public void setImageCacheLimit(long maxPixels) {
+        scaledImages.setMaxPixels(maxPixels);
+    }
+
+    /** Limits the total size of cached decompiler output, measured in tokens. */
+    public void setDecompileCacheLimit(long maxTokens) {
+        decompCache.setMaxTokens(maxTokens);
+    }
+
+    public DecompileCache.Stats getDecompileCacheStats() {
+        return decompCache.getStats();
+    }
+
+    /** Forgets decompilations of a program the tool has closed. */
+    public void programClosed(Program program) {
+        decompCache.programClosed(program);
+    }
+
+    /**
+     * Rebuilds the embeds for the given addresses (or all embeds when null), e.g.
+     * after their functions changed or a different program became current.
+     */
+    public void refreshEmbeds(Set<String> addresses) {
+        boolean removed = false;
+        Iterator<Section> it = renderedBlocks.values().iterator();
+        while (it.hasNext()) {
+            Section section = it.next();
+            Embed embed = section.block.embed();
+            if (embed != null && (addresses == null || addresses.contains(embed.address()))) {
+                releaseDecompilation(section);
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            rerender();
+        }
+    }
+
+    /** Sets how many embeds may be decompiled concurrently. */
+    public void setDecompileParallelism(int parallelism) {
+        int n = Math.max(1, parallelism);
+        if (n > decompExecutor.getMaximumPoolSize()) {
+            decompExecutor.setMaximumPoolSize(n);
+            decompExecutor.setCorePoolSize(n);
+        } else {
+            decompExecutor.setCorePoolSize(n);
+            decompExecutor.setMaximumPoolSize(n);
+        }
+    }
+
+    /** Stops the background renderer. Called when the owning provider is torn down. */
+    public void dispose() {
+        cancelRender();
+        renderExecutor.shutdownNow();
+        decompExecutor.shutdownNow();
+        decompCache.dispose();
     }
 
     // ----- Public API -----
@@ -146,12 +301,20 @@ public class CompositePreviewPanel extends JPanel {
      * Show arbitrary HTML directly (used for image previews).
      */
     public void setDirectHtml(String html) {
-        lastRenderedContent = null;
+        cancelRender();
+        renderedDocument = null;
+        discardSections(renderedBlocks.values());
+        renderedBlocks = new HashMap<>();
         SwingUtilities.invokeLater(() -> {
             innerPanel.removeAll();
             if (!html.isEmpty()) {
                 JEditorPane pane = createHtmlPane();
-                initHtmlKit(pane);
+                pane.setEditable(false);
+                pane.setContentType("text/html");
+                pane.setBorder(null);
+                pane.setOpaque(true);
+                pane.setEditorKit((HTMLEditorKit) htmlStyle().kit().clone());
+                installHyperlinkHandler(pane);
                 pane.setText(html);
                 pane.setCaretPosition(0);
                 innerPanel.add(pane);
@@ -163,63 +326,155 @@ public class CompositePreviewPanel extends JPanel {
     }
 
     /**
-     * Render markdown content. Splits on {{ADDRESS}}[start-end] patterns
-     * and builds a composite panel with HTML and decompiler sections.
+     * Render a parsed revision of the note: each embed becomes a decompiler section
+     * and each run of markdown between headings an HTML section. Blocks whose
+     * content is unchanged since the last render keep their existing component;
+     * only new or edited blocks are rendered and rebuilt.
+     *
+     * <p>Must be called on the EDT. Rendering and building the Swing documents run
+     * on a background thread; a newer call cancels any render still in progress,
+     * and only the final component swap happens on the EDT.
      */
-    public void updatePreview(String markdownContent) {
-        if (markdownContent.equals(lastRenderedContent)) return;
-        lastRenderedContent = markdownContent;
-
-        if (markdownContent.isEmpty()) {
-            SwingUtilities.invokeLater(() -> {
-                innerPanel.removeAll();
-                innerPanel.revalidate();
-                innerPanel.repaint();
-            });
+    public void updatePreview(ParsedDocument document) {
+        ParsedDocument previous = renderedDocument;
+        renderedDocument = document;
+        if (previous != null && previous.getText().equals(document.getText())) return;
+        cancelRender();
+
+        List<Block> blocks = document.getBlocks();
+        if (blocks.isEmpty()) {
+            discardSections(renderedBlocks.values());
+            renderedBlocks = new HashMap<>();
+            innerPanel.removeAll();
+            innerPanel.revalidate();
+            innerPanel.repaint();
             return;
         }
 
-        List<Object> segments = parseSegments(markdownContent);
+        long generation = renderGeneration;
+        Set<BlockKey> reusable = new HashSet<>(renderedBlocks.keySet());
+        renderJob = renderExecutor.submit(() -> {
+            try {
+                // One lookup for every function reference in the note, shared by its blocks
+                functionNames = resolveFunctionNames(document);
+                Map<BlockKey, PreparedHtml> prepared = new HashMap<>();
+                for (Block block : blocks) {
+                    if (Thread.currentThread().isInterrupted()) return;
+                    if (prepared.size() == MAX_EAGER_BLOCKS) break;
+                    if (block.ast() != null && !reusable.contains(block.key())) {
+                        prepared.put(block.key(), prepareHtml(block.ast(), functionNames));
+                    }
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (generation == renderGeneration) {
+                        publishBlocks(blocks, prepared);
+                    }
+                });
+            } catch (RuntimeException e) {
+                Msg.error(this, "Could not render the preview", e);
+            }
+        });
+    }
+
+    /** Renders the current revision again, rebuilding every block no longer in renderedBlocks. */
+    private void rerender() {
+        ParsedDocument document = renderedDocument;
+        if (document == null) return;
+        renderedDocument = null; // force re-render
+        updatePreview(document);
+    }
+
+    /** Cancels the in-flight render job, if any, and invalidates its pending result. */
+    private void cancelRender() {
+        renderGeneration++;
+        if (renderJob != null) {
+            renderJob.cancel(true);
+            renderJob = null;
+        }
+    }
 
-        // Build HTML panes and embed panels (may involve decompilation)
+    /**
+     * Turns the result of a render job into sections on the EDT: unchanged blocks
+     * keep their existing section, new ones start as placeholders of estimated
+     * height and get real components once they are near the viewport.
+     */
+    private void publishBlocks(List<Block> blocks, Map<BlockKey, PreparedHtml> prepared) {
+        Map<BlockKey, Section> nextBlocks = new HashMap<>();
         List<Component> components = new ArrayList<>();
-        for (Object seg : segments) {
-            if (seg instanceof String text) {
-                if (!text.isBlank()) {
-                    components.add(buildHtmlSection(text));
-                }
-            } else if (seg instanceof EmbedSpec spec) {
-                components.add(buildEmbedSection(spec));
+        for (Block block : blocks) {
+            Section section = renderedBlocks.get(block.key());
+            if (section == null) {
+                section = new Section(block.key(), block.ast(), estimateHeight(block.key()));
+                // May be null if the block was invalidated after the job took its snapshot
+                section.html = prepared.get(block.key());
             }
+            nextBlocks.put(block.key(), section);
+            components.add(section);
         }
+        for (Map.Entry<BlockKey, Section> e : renderedBlocks.entrySet()) {
+            if (nextBlocks.get(e.getKey()) != e.getValue()) recycle(e.getValue());
+        }
+        renderedBlocks = nextBlocks;
+        applyComponents(components);
+        updateVisibleSections();
+    }
 
-        SwingUtilities.invokeLater(() -> {
-            innerPanel.removeAll();
-            for (Component c : components) {
-                // Let each component fill the full width
-                if (c instanceof JComponent jc) {
-                    jc.setMaximumSize(new Dimension(Integer.MAX_VALUE, jc.getMaximumSize().height));
-                    jc.setAlignmentX(Component.LEFT_ALIGNMENT);
-                }
-                innerPanel.add(c);
+    /**
+     * Brings innerPanel in line with the given component order, touching only the
+     * children that were added, removed or moved. Unchanged components stay attached
+     * so their layout and the viewport position are preserved.
+     */
+    private void applyComponents(List<Component> components) {
+        Set<Component> wanted = Collections.newSetFromMap(new IdentityHashMap<>());
+        wanted.addAll(components);
+        for (int i = innerPanel.getComponentCount() - 1; i >= 0; i--) {
+            if (!wanted.contains(innerPanel.getComponent(i))) {
+                innerPanel.remove(i);
             }
-            innerPanel.setBackground(Gui.getColor("color.bg"));
-            innerPanel.revalidate();
-            innerPanel.repaint();
-        });
+        }
+        for (int i = 0; i < components.size(); i++) {
+            Component c = components.get(i);
+            if (i < innerPanel.getComponentCount() && innerPanel.getComponent(i) == c) continue;
+            innerPanel.add(c, i);
+        }
+        innerPanel.setBackground(Gui.getColor("color.bg"));
+        innerPanel.revalidate();
+        innerPanel.repaint();
+    }
+
+    /** Drops cached HTML blocks so they are rebuilt on the next render; embeds are kept. */
+    private void invalidateHtmlBlocks() {
+        renderedBlocks.keySet().removeIf(block -> block.embed() == null);
     }
 
     /**
-     * Rebuild HTML kit on all existing HTML panes to pick up the new theme,
-     * then re-render the last content.
+     * Re-renders the blocks that show function names, after the resolver reports
+     * that names in the current program have changed.
+     */
+    public void refreshFunctionNames() {
+        if (renderedDocument == null) return;
+        renderedBlocks.keySet().removeIf(block ->
+            block.embed() == null && PreviewMarkdown.FUNCTION_REF.matcher(block.markdown()).find());
+        rerender();
+    }
+
+    /**
+     * Refreshes embeds for the current theme and zoom and, if either changed the
+     * preview stylesheet, re-renders the HTML blocks against the rebuilt one.
      */
     public void refreshTheme() {
-        String content = lastRenderedContent;
-        lastRenderedContent = null; // force re-render
+        HtmlStyle previous;
+        synchronized (htmlStyleLock) {
+            previous = htmlStyle;
+        }
+        boolean styleChanged = htmlStyle() != previous;
+        if (styleChanged) {
+            invalidateHtmlBlocks();
+        }
         // Refresh embed panels immediately
         SwingUtilities.invokeLater(() -> {
-            for (Component c : innerPanel.getComponents()) {
-                if (c instanceof EmbeddedDecompilerPanel ep) {
+            for (Section section : renderedBlocks.values()) {
+                if (section.content instanceof EmbeddedDecompilerPanel ep) {
                     ep.setZoomFactor(zoomFactor);
                     ep.refreshTheme();
                 }
@@ -227,89 +482,284 @@ public class CompositePreviewPanel extends JPanel {
             innerPanel.setBackground(Gui.getColor("color.bg"));
         });
         // Re-render full content so HTML panes pick up new theme colors
-        if (content != null) {
-            updatePreview(content);
+        if (styleChanged) {
+            rerender();
         }
     }
 
+    // ----- Virtualization -----
+
+    /**
+     * Slot for one block of the preview. It holds the block's real component only
+     * while the block is near the viewport; otherwise it stays empty at the block's
+     * last measured (or, before it was first shown, estimated) height, so the
+     * scroll extent and the position of everything below remain right.
+     */
+    private static final class Section extends JPanel {
+        final BlockKey block;
+        final Node ast;        // null for embeds
+        PreparedHtml html;     // rendered but not yet shown
+        Component content;
+        int height;
+        boolean preparing;
+        Program decompProgram;
+        CompletableFuture<DecompOutput> decompilation;
+
+        Section(BlockKey block, Node ast, int estimatedHeight) {
+            super(new BorderLayout());
+            this.block = block;
+            this.ast = ast;
+            this.height = estimatedHeight;
+            setOpaque(false);
+            setAlignmentX(Component.LEFT_ALIGNMENT);
+        }
+
+        void show(Component c) {
+            content = c;
+            add(c, BorderLayout.CENTER);
+        }
+
+        void clear() {
+            if (content == null) return;
+            remove(content);
+            content = null;
+            revalidate();
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            if (content == null) return new Dimension(0, height);
+            Dimension size = super.getPreferredSize();
+            height = size.height;
+            return size;
+        }
+
+        @Override
+        public Dimension getMaximumSize() {
+            // Fill the full width, but never stretch vertically
+            return new Dimension(Integer.MAX_VALUE, getPreferredSize().height);
+        }
+    }
+
+    private void scheduleVisibilityUpdate() {
+        if (visibilityUpdatePending) return;
+        visibilityUpdatePending = true;
+        SwingUtilities.invokeLater(this::updateVisibleSections);
+    }
+
+    /**
+     * Gives sections near the viewport their real component and recycles those
+     * far from it. An embed still waiting for its decompilation is recycled as
+     * soon as it leaves the prefetch range, which cancels the job if it has not
+     * started. If a section above the viewport changes height, the view is
+     * shifted so the content under it does not jump.
+     */
+    private void updateVisibleSections() {
+        visibilityUpdatePending = false;
+        JViewport viewport = scrollPane.getViewport();
+        scrollPane.validate();
+        Rectangle view = viewport.getViewRect();
+        int screen = Math.max(view.height, 200);
+        int prefetch = PREFETCH_SCREENS * screen;
+        int keep = RECYCLE_SCREENS * screen;
+
+        Section anchor = null;
+        int anchorOffset = 0;
+        boolean changed = false;
+        for (Component c : innerPanel.getComponents()) {
+            if (!(c instanceof Section section)) continue;
+            int top = section.getY();
+            int bottom = top + section.getHeight();
+            if (anchor == null && bottom > view.y) {
+                anchor = section;
+                anchorOffset = view.y - top;
+            }
+            if (bottom >= view.y - prefetch && top <= view.y + view.height + prefetch) {
+                changed |= materialize(section);
+            } else if (bottom < view.y - keep || top > view.y + view.height + keep
+                       || (section.decompilation != null && !section.decompilation.isDone())) {
+                changed |= section.content != null || section.html != null;
+                recycle(section);
+            }
+        }
+        if (!changed) return;
+
+        scrollPane.validate();
+        if (anchor != null && anchor.getParent() == innerPanel && view.y > 0) {
+            int y = anchor.getY() + anchorOffset;
+            if (y != view.y) viewport.setViewPosition(new Point(view.x, Math.max(0, y)));
+        }
+        innerPanel.repaint();
+    }
+
+    /** Shows a section's real component, preparing its HTML first if needed. True if it changed. */
+    private boolean materialize(Section section) {
+        if (section.content != null) return false;
+        if (section.block.embed() != null) {
+            section.show(buildEmbedSection(section));
+        } else if (section.html != null) {
+            section.show(createHtmlSection(section.html));
+            section.html = null;
+        } else {
+            prepareSection(section);
+            return false;
+        }
+        return true;
+    }
+
+    /** Returns a section to a placeholder, dropping its component and any decompilation it waits for. */
+    private void recycle(Section section) {
+        releaseDecompilation(section);
+        section.clear();
+        section.html = null;
+    }
+
+    /** Recycles sections that are no longer part of the preview. */
+    private void discardSections(Collection<Section> sections) {
+        for (Section section : sections) {
+            recycle(section);
+        }
+    }
+
+    private void releaseDecompilation(Section section) {
+        if (section.decompilation == null) return;
+        decompCache.release(section.decompProgram, section.block.embed().address(), section.decompilation);
+        section.decompilation = null;
+        section.decompProgram = null;
+    }
+
+    /** Renders a section's tree on the render thread and shows it if still wanted. */
+    private void prepareSection(Section section) {
+        if (section.preparing || renderExecutor.isShutdown()) return;
+        section.preparing = true;
+        Node ast = section.ast;
+        renderExecutor.execute(() -> {
+            PreparedHtml html;
+            try {
+                html = prepareHtml(ast, functionNames);
+            } catch (RuntimeException e) {
+                Msg.error(this, "Could not render a preview section", e);
+                html = null;
+            }
+            PreparedHtml result = html;
+            SwingUtilities.invokeLater(() -> {
+                section.preparing = false;
+                if (result == null || renderedBlocks.get(section.block) != section) return;
+                section.html = result;
+                scheduleVisibilityUpdate();
+            });
+        });
+    }
+
+    /** A rough height for a block that has not been shown yet, from its text and the viewport width. */
+    private int estimateHeight(BlockKey block) {
+        Embed embed = block.embed();
+        if (embed != null) {
+            return EmbeddedDecompilerPanel.estimateHeight(embed.startLine(), embed.endLine());
+        }
+        float fontSize = 14 * zoomFactor;
+        float lineHeight = fontSize * 1.6f;
+        int width = scrollPane.getViewport().getWidth();
+        int charsPerLine = Math.max(20, (int) (((width > 0 ? width : 600) - 40) / (fontSize * 0.55f)));
+        float height = 40;  // body margin
+        for (String line : block.markdown().split("\n", -1)) {
+            String text = line.strip();
+            if (text.isEmpty()) {
+                height += lineHeight / 2;
+            } else if (ParsedDocument.HEADING_LINE.matcher(line).lookingAt()) {
+                height += lineHeight * 2.5f;
+            } else {
+                height += lineHeight * (1 + text.length() / charsPerLine);
+                if (text.contains("![")) height += 300 * zoomFactor;
+            }
+        }
+        return (int) height;
+    }
+
     // ----- Private helpers -----
 
-    private List<Object> parseSegments(String content) {
-        List<Object> segments = new ArrayList<>();
-        Matcher m = EMBED_PATTERN.matcher(content);
-        int lastEnd = 0;
-        while (m.find()) {
-            String before = content.substring(lastEnd, m.start());
-            if (!before.isEmpty()) segments.add(before);
-            // group(2) is the start number (empty string = entire function)
-            // group(3) is the end number (absent = same as start, i.e. single line)
-            String g2 = m.group(2);
-            String g3 = m.group(3);
-            Integer startLine = (g2 != null && !g2.isEmpty()) ? Integer.valueOf(g2) : null;
-            Integer endLine   = (g3 != null) ? Integer.valueOf(g3) : startLine;
-            segments.add(new EmbedSpec(m.group(1), startLine, endLine));
-            lastEnd = m.end();
-        }
-        String tail = content.substring(lastEnd);
-        if (!tail.isEmpty()) segments.add(tail);
-        return segments;
-    }
-
-    private JEditorPane buildHtmlSection(String markdownText) {
-        Node doc = markdownParser.parse(markdownText);
-        String html = htmlRenderer.render(doc);
-        String processed = processHtml(html);
-        String styledHtml = "<html><body>" + processed + "</body></html>";
+    /**
+     * Renders a block's tree and loads the HTML into a standalone HTMLDocument.
+     * Only reads the tree and touches no live component, so it is safe off the EDT.
+     */
+    private PreparedHtml prepareHtml(Node ast, Map<String, String> functionNames) {
+        String body = PreviewMarkdown.renderer(functionNames, this::resolveImage).render(ast);
+        String styledHtml = "<html><body>" + body + "</body></html>";
+
+        // Each pane needs its own kit instance, but clones share the parsed stylesheet
+        HTMLEditorKit kit = (HTMLEditorKit) htmlStyle().kit().clone();
+        HTMLDocument document = (HTMLDocument) kit.createDefaultDocument();
+        document.putProperty("imageCache", scaledImages.getImageDictionary());
+        try {
+            kit.read(new StringReader(styledHtml), document, 0);
+        } catch (IOException | BadLocationException e) {
+            Msg.error(this, "Could not load rendered preview HTML", e);
+        }
+        return new PreparedHtml(kit, document);
+    }
 
+    private JEditorPane createHtmlSection(PreparedHtml html) {
         JEditorPane pane = createHtmlPane();
-        initHtmlKit(pane);
-        pane.setText(styledHtml);
+        pane.setEditable(false);
+        pane.setBorder(null);
+        pane.setOpaque(true);
+        pane.setEditorKit(html.kit());
+        pane.setDocument(html.document());
         pane.setCaretPosition(0);
+        installHyperlinkHandler(pane);
         return pane;
     }
 
-    private EmbeddedDecompilerPanel buildEmbedSection(EmbedSpec spec) {
+    private EmbeddedDecompilerPanel buildEmbedSection(Section section) {
+        Embed spec = section.block.embed();
         EmbeddedDecompilerPanel panel = new EmbeddedDecompilerPanel(
-            spec.address, spec.startLine, spec.endLine);
+            spec.address(), spec.startLine(), spec.endLine());
         panel.setZoomFactor(zoomFactor);
         if (navigationHandler != null) {
-            panel.setNavigationCallback(() -> navigationHandler.navigateToAddress(spec.address));
+            panel.setNavigationCallback(() -> navigationHandler.navigateToAddress(spec.address()));
         }
 
-        // Kick off async decompilation so we don't block the EDT
-        SwingWorker<DecompOutput, Void> worker = new SwingWorker<>() {
-            @Override
-            protected DecompOutput doInBackground() {
-                synchronized (decompCache) {
-                    return decompCache.computeIfAbsent(spec.address, addr -> {
-                        if (decompilationCallback == null) return null;
-                        return decompilationCallback.decompile(addr);
-                    });
-                }
-            }
-
-            @Override
-            protected void done() {
-                try {
-                    DecompOutput output = get();
-                    if (output != null) {
-                        panel.render(output.function(), output.markup(), output.cText(),
-                                     spec.startLine, spec.endLine);
-                    } else {
-                        panel.setStatusText("// Could not decompile " + spec.address);
-                    }
-                    innerPanel.revalidate();
-                    innerPanel.repaint();
-                } catch (Exception e) {
-                    panel.setStatusText("// Decompilation error: " + e.getMessage());
+        // Decompile in the background; the panel fills in whenever its result arrives
+        DecompilationCallback callback = decompilationCallback;
+        Program program = callback != null ? callback.getCurrentProgram() : null;
+        if (program == null) {
+            panel.setStatusText("// Could not decompile " + spec.address());
+            return panel;
+        }
+        CompletableFuture<DecompOutput> decompilation = requestDecompilation(callback, program, spec.address());
+        section.decompProgram = program;
+        section.decompilation = decompilation;
+        decompilation.whenComplete((output, error) ->
+            SwingUtilities.invokeLater(() -> {
+                if (error instanceof CancellationException) {
+                    return;
+                } else if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    panel.setStatusText("// Decompilation error: " + cause.getMessage());
+                } else if (output != null) {
+                    panel.render(output.snapshot(), spec.startLine(), spec.endLine());
+                } else {
+                    panel.setStatusText("// Could not decompile " + spec.address());
                 }
-            }
-        };
-        worker.execute();
+                innerPanel.revalidate();
+                innerPanel.repaint();
+            }));
 
         return panel;
     }
 
+    /**
+     * Returns the decompilation job for an address, starting one on the bounded
+     * executor if none is cached or in flight. Distinct addresses decompile in
+     * parallel; failed or empty results are dropped so a later render retries.
+     * Every call must be matched by a release once the caller loses interest.
+     */
+    private CompletableFuture<DecompOutput> requestDecompilation(DecompilationCallback callback,
+                                                                 Program program, String address) {
+        return decompCache.get(program, address, () ->
+            CompletableFuture.supplyAsync(() -> callback.decompile(program, address), decompExecutor));
+    }
+
     private JEditorPane createHtmlPane() {
         return new JEditorPane() {
             @Override
@@ -320,22 +770,25 @@ public class CompositePreviewPanel extends JPanel {
     }
 
     /**
-     * Initialises the HTMLEditorKit and per-document stylesheet on a fresh
-     * JEditorPane, applying Ghidra theme colors and the current zoom factor.
+     * Returns the shared stylesheet and kit for the current theme and zoom,
+     * building them only when one of those has changed since the last call.
      */
-    private void initHtmlKit(JEditorPane pane) {
-        pane.setEditable(false);
-        pane.setContentType("text/html");
-        pane.setBorder(null);
-        pane.setOpaque(true);
-
-        HTMLEditorKit kit = new HTMLEditorKit();
-        pane.setEditorKit(kit);
-        // Use document-level stylesheet — isolated, never shared with other components
-        StyleSheet ss = ((HTMLDocument) pane.getDocument()).getStyleSheet();
-        applyHtmlStyles(ss);
+    private HtmlStyle htmlStyle() {
+        ThemeColors colors = ThemeColors.current();
+        float zoom = zoomFactor;
+        synchronized (htmlStyleLock) {
+            if (htmlStyle == null || htmlStyle.zoom() != zoom || !htmlStyle.colors().equals(colors)) {
+                StyleSheet ss = new StyleSheet();
+                // Swing's defaults stay underneath; rules added below take precedence over them
+                ss.addStyleSheet(new HTMLEditorKit().getStyleSheet());
+                applyHtmlStyles(ss, colors, zoom);
+                htmlStyle = new HtmlStyle(colors, zoom, new PreviewEditorKit(ss));
+            }
+            return htmlStyle;
+        }
+    }
 
-        // Hyperlink handler
+    private void installHyperlinkHandler(JEditorPane pane) {
         pane.addHyperlinkListener(e -> {
             if (e.getEventType() == javax.swing.event.HyperlinkEvent.EventType.ACTIVATED) {
                 String href = e.getDescription();
@@ -357,26 +810,20 @@ public class CompositePreviewPanel extends JPanel {
         });
     }
 
-    private void applyHtmlStyles(StyleSheet ss) {
-        Color headerColor     = Gui.getColor("color.fg.decompiler.function.name");
-        Color boldColor       = Gui.getColor("color.fg.decompiler.keyword");
-        Color italicColor     = Gui.getColor("color.fg.decompiler.type");
-        Color linkColor       = Gui.getColor("color.fg.decompiler.variable");
-        Color codeColor       = Gui.getColor("color.fg.decompiler.comment");
-        Color blockquoteColor = Gui.getColor("color.fg.decompiler.global");
-        Color background      = Gui.getColor("color.bg");
-        Color foreground      = Gui.getColor("color.fg");
-
-        String headerHex     = hex(headerColor);
-        String boldHex       = hex(boldColor);
-        String italicHex     = hex(italicColor);
-        String linkHex       = hex(linkColor);
-        String codeHex       = hex(codeColor);
-        String blockquoteHex = hex(blockquoteColor);
+    private static void applyHtmlStyles(StyleSheet ss, ThemeColors colors, float zoom) {
+        Color background = colors.background();
+        Color foreground = colors.foreground();
+
+        String headerHex     = hex(colors.header());
+        String boldHex       = hex(colors.bold());
+        String italicHex     = hex(colors.italic());
+        String linkHex       = hex(colors.link());
+        String codeHex       = hex(colors.code());
+        String blockquoteHex = hex(colors.blockquote());
         String bgHex         = hex(background);
         String fgHex         = hex(foreground);
 
-        float base = 14 * zoomFactor;
+        float base = 14 * zoom;
         ss.addRule("body { font-family: Arial, sans-serif; margin: 20px; background-color: " + bgHex + "; color: " + fgHex + "; font-size: " + base + "px; line-height: 1.6; }");
         ss.addRule("h1 { color: " + headerHex + "; font-size: " + (base * 2.0f) + "px; }");
         ss.addRule("h2 { color: " + linkHex    + "; font-size: " + (base * 1.8f) + "px; }");
@@ -400,147 +847,79 @@ public class CompositePreviewPanel extends JPanel {
     }
 
     /**
-     * Post-processes rendered HTML to:
-     * 1. Convert relative image paths to absolute file:// URIs and add dimensions.
-     * 2. Convert {address} references to clickable links with optional function names.
-     * 3. Convert [address] references to clickable navigation links.
+     * Scroll the preview to the block containing the given character offset in the
+     * raw markdown. Every heading opens a block, so a heading's offset scrolls to
+     * that heading. Called from the TOC click handler.
      */
-    private String processHtml(String html) {
-        html = addHeadingAnchors(html);
-        html = processImagePaths(html);
-        html = processFunctionRefs(html);
-        html = processAddressRefs(html);
-        return html;
+    public void scrollToMarkdownPosition(int markdownPosition) {
+        ParsedDocument document = renderedDocument;
+        Block block = document != null ? document.blockAt(markdownPosition) : null;
+        if (block == null) return;
+        // Null while the revision is still rendering
+        Section target = renderedBlocks.get(block.key());
+        if (target == null) return;
+
+        materialize(target);
+        scrollPane.validate();
+        JViewport viewport = scrollPane.getViewport();
+        int maxY = Math.max(0, innerPanel.getHeight() - viewport.getHeight());
+        viewport.setViewPosition(new Point(0, Math.min(target.getY(), maxY)));
     }
 
     /**
-     * Scroll the preview to the heading that starts at the given character offset
-     * in the raw markdown. Called from the TOC click handler.
+     * Resolves a note image against the note's folder (or the collection root for
+     * paths starting with "/") and fits it to the preview, loading a scaled copy
+     * when it is drawn smaller than its natural size. Remote images are left alone.
      */
-    public void scrollToMarkdownPosition(int markdownPosition) {
-        if (lastRenderedContent == null) return;
-        String heading = extractHeadingAt(lastRenderedContent, markdownPosition);
-        if (heading == null) return;
-        String anchorId = toAnchorId(heading);
-        // scrollToReference calls scrollRectToVisible which propagates up to our outer JScrollPane
-        for (Component c : innerPanel.getComponents()) {
-            if (c instanceof JEditorPane pane) {
-                pane.scrollToReference(anchorId);
-            }
+    private PreviewMarkdown.ResolvedImage resolveImage(String imgPath) {
+        if (currentFile == null || currentDirectory == null || imgPath == null) return null;
+        if (imgPath.startsWith("http://") || imgPath.startsWith("https://") || imgPath.startsWith("file://")) {
+            return null;
         }
-    }
 
-    /**
-     * Injects named anchors inside heading elements so JEditorPane.scrollToReference() can find them.
-     * scrollToReference looks for <a name="..."> tags specifically, not id attributes.
-     */
-    private static String addHeadingAnchors(String html) {
-        Pattern p = Pattern.compile("<(h[1-6])>(.+?)</h[1-6]>",
-            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(html);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String tag      = m.group(1).toLowerCase();
-            String inner    = m.group(2);
-            String plainText = inner.replaceAll("<[^>]+>", "");
-            String id       = toAnchorId(plainText);
-            m.appendReplacement(sb, Matcher.quoteReplacement(
-                "<" + tag + "><a name=\"" + id + "\"></a>" + inner + "</" + tag + ">"));
-        }
-        m.appendTail(sb);
-        return sb.toString();
-    }
-
-    private static String extractHeadingAt(String content, int position) {
-        if (position >= content.length()) return null;
-        Pattern p = Pattern.compile("^#{1,6}\\s+(.+?)\\s*#*$", Pattern.MULTILINE);
-        Matcher m = p.matcher(content.substring(position));
-        return (m.find() && m.start() == 0) ? m.group(1).trim() : null;
-    }
-
-    private static String toAnchorId(String text) {
-        return text.toLowerCase()
-            .replaceAll("[^a-z0-9\\s-]", "")
-            .trim()
-            .replaceAll("\\s+", "-");
-    }
-
-    private String processImagePaths(String html) {
-        if (currentFile == null || currentDirectory == null) return html;
-
-        Pattern pattern = Pattern.compile("(<img[^>]+src=\")([^\"]+)\"([^>]*)>");
-        Matcher matcher = pattern.matcher(html);
-        StringBuffer result = new StringBuffer();
-
-        while (matcher.find()) {
-            String prefix  = matcher.group(1);
-            String imgPath = matcher.group(2);
-            String rest    = matcher.group(3);
-
-            if (imgPath.startsWith("http://") || imgPath.startsWith("https://") || imgPath.startsWith("file://")) {
-                matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group(0)));
-                continue;
+        try {
+            Path absPath;
+            if (imgPath.startsWith("/")) {
+                absPath = currentDirectory.resolve(imgPath.substring(1));
+            } else {
+                absPath = currentFile.getParent().resolve(imgPath);
             }
 
-            try {
-                Path absPath;
-                if (imgPath.startsWith("/")) {
-                    absPath = currentDirectory.resolve(imgPath.substring(1));
-                } else {
-                    absPath = currentFile.getParent().resolve(imgPath);
-                }
-
-                if (Files.exists(absPath)) {
-                    BufferedImage img = ImageIO.read(absPath.toFile());
-                    if (img != null) {
-                        double maxW  = 600 * zoomFactor;
-                        double maxH  = 450 * zoomFactor;
-                        double scale = Math.min(maxW / img.getWidth(), maxH / img.getHeight());
-                        int w = scale < 1.0 ? (int)(img.getWidth()  * scale) : img.getWidth();
-                        int h = scale < 1.0 ? (int)(img.getHeight() * scale) : img.getHeight();
-                        String imgTag = prefix + absPath.toFile().toURI() + "\" width=\"" + w + "\" height=\"" + h + "\">";
-                        matcher.appendReplacement(result, Matcher.quoteReplacement(
-                            "<div style=\"text-align:center\">" + imgTag + "</div>"));
-                        continue;
+            if (Files.exists(absPath)) {
+                Dimension img = ImageMetadataCache.getDimensions(absPath);
+                if (img != null) {
+                    double maxW  = 600 * zoomFactor;
+                    double maxH  = 450 * zoomFactor;
+                    double scale = Math.min(maxW / img.width, maxH / img.height);
+                    int w = scale < 1.0 ? (int)(img.width  * scale) : img.width;
+                    int h = scale < 1.0 ? (int)(img.height * scale) : img.height;
+                    URI src = absPath.toFile().toURI();
+                    if (scale < 1.0) {
+                        // Load a copy scaled for this zoom step rather than the full-size original
+                        float bucket = ScaledImageCache.zoomBucket(zoomFactor);
+                        double variantScale = Math.min(600 * bucket / img.width, 450 * bucket / img.height);
+                        URI variant = scaledImages.variant(absPath,
+                            (int) (img.width * variantScale), (int) (img.height * variantScale));
+                        if (variant != null) src = variant;
                     }
+                    return new PreviewMarkdown.ResolvedImage(src.toString(), w, h);
                 }
-                matcher.appendReplacement(result, Matcher.quoteReplacement(
-                    "<div style=\"text-align:center\">" + prefix + absPath.toFile().toURI() + "\"></div>"));
-            } catch (IOException e) {
-                matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group(0)));
             }
+            return new PreviewMarkdown.ResolvedImage(absPath.toFile().toURI().toString(), 0, 0);
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /** Looks up the names of all {address} references in a revision at once. */
+    private Map<String, String> resolveFunctionNames(ParsedDocument document) {
+        FunctionNameResolver resolver = functionNameResolver;
+        if (resolver == null) return Map.of();
+        Set<String> addresses = new LinkedHashSet<>();
+        for (ParsedDocument.Reference reference : document.getReferences()) {
+            if (reference.function()) addresses.add(reference.address());
         }
-        matcher.appendTail(result);
-        return result.toString();
-    }
-
-    private String processFunctionRefs(String html) {
-        Pattern pattern = Pattern.compile("\\{(0x[0-9a-fA-F]+|[0-9a-fA-F]+)\\}");
-        Matcher matcher = pattern.matcher(html);
-        StringBuffer result = new StringBuffer();
-        while (matcher.find()) {
-            String address = matcher.group(1);
-            String display = functionNameResolver != null
-                ? functionNameResolver.getFunctionName(address) : address;
-            if (display == null) display = address;
-            matcher.appendReplacement(result, Matcher.quoteReplacement(
-                "<a href=\"address://" + address + "\">" + display + "</a>"));
-        }
-        matcher.appendTail(result);
-        return result.toString();
-    }
-
-    private String processAddressRefs(String html) {
-        Pattern pattern = Pattern.compile("\\[(0x[0-9a-fA-F]+|[0-9a-fA-F]+)\\]");
-        Matcher matcher = pattern.matcher(html);
-        StringBuffer result = new StringBuffer();
-        while (matcher.find()) {
-            String address = matcher.group(1);
-            matcher.appendReplacement(result, Matcher.quoteReplacement(
-                "<a href=\"address://" + address + "\">" + address + "</a>"));
-        }
-        matcher.appendTail(result);
-        return result.toString();
+        return addresses.isEmpty() ? Map.of() : resolver.getFunctionNames(addresses);
     }
 
     /** A JPanel that implements Scrollable so JScrollPane tracks viewport width correctly. */
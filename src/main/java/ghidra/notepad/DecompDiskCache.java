@@ -0,0 +1,255 @@
+package ghidra.notepad;
+
+import ghidra.framework.Application;
+import ghidra.program.model.address.Address;
+import ghidra.program.model.address.AddressRange;
+import ghidra.program.model.data.Array;
+import ghidra.program.model.data.Composite;
+import ghidra.program.model.data.DataType;
+import ghidra.program.model.data.DataTypeComponent;
+import ghidra.program.model.data.Enum;
+import ghidra.program.model.data.Pointer;
+import ghidra.program.model.data.TypeDef;
+import ghidra.program.model.listing.CommentType;
+import ghidra.program.model.listing.Function;
+import ghidra.program.model.listing.Listing;
+import ghidra.program.model.listing.Program;
+import ghidra.program.model.listing.Variable;
+import ghidra.program.model.mem.MemoryAccessException;
+import ghidra.util.Msg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Keeps decompiled embeds on disk inside the collection, so a note renders
+ * without starting the decompiler when it is reopened in a later session.
+ *
+ * <p>Entries live under {@code .notepad/decomp/<program hash>/} and are named
+ * by function entry point plus a hash of everything the output depends on: the
+ * function's address ranges, bytes and prototype, its parameters and locals with
+ * their storage and types, the layout of those types, the comments in its body,
+ * and the decompiler settings (Ghidra version, language and compiler spec — the
+ * pool runs the decompiler with default options otherwise). Callee, label and
+ * global names the output mentions are checked on load, so renaming one of them
+ * elsewhere is a miss.
+ */
+public class DecompDiskCache {
+    private static final String DIRECTORY_NAME = "decomp";
+    private static final String EXTENSION = ".bin";
+    private static final int MAX_BODY_BYTES = 1 << 20;
+
+    private volatile Path root;
+
+    /** Points the cache at a collection; null disables it. */
+    public void setCollection(Path collection) {
+        root = collection != null
+            ? collection.resolve(FileOperations.CACHE_DIRECTORY_NAME).resolve(DIRECTORY_NAME)
+            : null;
+    }
+
+    /**
+     * Returns the entry path for a function's current state, or null if the
+     * cache is disabled. Work it out once per job, before decompiling, and pass
+     * it to {@link #load} and {@link #store}.
+     */
+    public Path entryFile(Function function) {
+        Path dir = programDirectory(function.getProgram());
+        if (dir == null) return null;
+        String fingerprint = fingerprint(function);
+        if (fingerprint == null) return null;
+        String name = entryName(Long.toHexString(function.getEntryPoint().getOffset()));
+        return dir.resolve(name + "-" + fingerprint + EXTENSION);
+    }
+
+    /** Returns the snapshot stored at an entry, or null if there is none or it no longer matches. */
+    public DecompSnapshot load(Function function, Path file) {
+        if (file == null || !Files.isRegularFile(file)) return null;
+        DecompSnapshot snapshot;
+        try (InputStream in = Files.newInputStream(file)) {
+            snapshot = DecompSnapshot.read(new DataInputStream(new BufferedInputStream(in)));
+        } catch (IOException e) {
+            deleteQuietly(file);
+            return null;
+        }
+        if (!namesResolve(function.getProgram(), snapshot)) {
+            deleteQuietly(file);
+            return null;
+        }
+        return snapshot;
+    }
+
+    /** Writes a snapshot to an entry and drops the function's entries for older fingerprints. */
+    public void store(Function function, Path file, DecompSnapshot snapshot) {
+        if (file == null) return;
+        try {
+            Files.createDirectories(file.getParent());
+            // Write beside the entry and move into place so readers never see a partial file
+            Path temp = Files.createTempFile(file.getParent(), "entry", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                snapshot.write(data);
+                data.flush();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Msg.error(this, "Could not store decompiled " + function.getName(), e);
+            return;
+        }
+        String name = file.getFileName().toString();
+        String prefix = name.substring(0, name.indexOf('-') + 1);
+        try (Stream<Path> files = Files.list(file.getParent())) {
+            files.filter(p -> !p.equals(file))
+                 .filter(p -> {
+                     String other = p.getFileName().toString();
+                     return other.startsWith(prefix) && other.endsWith(EXTENSION);
+                 })
+                 .forEach(DecompDiskCache::deleteQuietly);
+        } catch (IOException e) {
+            Msg.error(this, "Could not list " + file.getParent(), e);
+        }
+    }
+
+    /** Deletes every stored version of the functions at the given entry addresses. */
+    public void remove(Program program, Iterable<String> addresses) {
+        Path dir = programDirectory(program);
+        if (dir == null || !Files.isDirectory(dir)) return;
+        Set<String> names = new HashSet<>();
+        addresses.forEach(address -> names.add(entryName(address)));
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> {
+                String name = p.getFileName().toString();
+                int dash = name.indexOf('-');
+                return dash > 0 && names.contains(name.substring(0, dash));
+            }).forEach(DecompDiskCache::deleteQuietly);
+        } catch (IOException e) {
+            Msg.error(this, "Could not list " + dir, e);
+        }
+    }
+
+    private Path programDirectory(Program program) {
+        Path base = root;
+        if (base == null) return null;
+        String id = program.getExecutableSHA256();
+        if (id == null || id.isEmpty()) id = program.getExecutableMD5();
+        if (id == null || id.isEmpty()) return null;
+        return base.resolve(id.toLowerCase());
+    }
+
+    private static String entryName(String address) {
+        return address.toLowerCase().replaceAll("^0x", "").replaceFirst("^0+(?=.)", "");
+    }
+
+    /** Hashes the function body, prototype, variables, types, comments and decompiler settings that shaped its output. */
+    private static String fingerprint(Function function) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        Program program = function.getProgram();
+        update(digest, Application.getApplicationVersion());
+        update(digest, program.getLanguageID().getIdAsString());
+        update(digest, program.getCompilerSpec().getCompilerSpecID().getIdAsString());
+        update(digest, function.getPrototypeString(true, true));
+
+        long budget = MAX_BODY_BYTES;
+        for (AddressRange range : function.getBody()) {
+            Address start = range.getMinAddress();
+            update(digest, Long.toHexString(start.getOffset()) + ":" + range.getLength());
+            int length = (int) Math.min(range.getLength(), budget);
+            if (length <= 0) continue;
+            byte[] bytes = new byte[length];
+            try {
+                int read = program.getMemory().getBytes(start, bytes);
+                digest.update(bytes, 0, Math.max(0, read));
+            } catch (MemoryAccessException e) {
+                // Uninitialized memory: the ranges alone identify the body
+            }
+            budget -= length;
+        }
+
+        // Variables edited in the listing change names and casts without touching the prototype
+        Set<String> visited = new HashSet<>();
+        updateType(digest, function.getReturnType(), visited);
+        for (Variable variable : function.getAllVariables()) {
+            update(digest, variable.getName());
+            update(digest, String.valueOf(variable.getVariableStorage()));
+            updateType(digest, variable.getDataType(), visited);
+        }
+
+        update(digest, function.getComment());
+        Listing listing = program.getListing();
+        for (Address address : listing.getCommentAddressIterator(function.getBody(), true)) {
+            update(digest, Long.toHexString(address.getOffset()));
+            for (CommentType type : CommentType.values()) {
+                update(digest, listing.getComment(type, address));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    /**
+     * Hashes a data type and the types it is built from, so editing a structure
+     * a variable uses, or one it points to, changes the fingerprint too.
+     */
+    private static void updateType(MessageDigest digest, DataType type, Set<String> visited) {
+        if (type == null) {
+            update(digest, null);
+            return;
+        }
+        update(digest, type.getPathName());
+        if (!visited.add(type.getPathName())) return;
+        update(digest, type.getLength() + ":" + type.getLastChangeTime());
+        if (type instanceof Pointer pointer) {
+            updateType(digest, pointer.getDataType(), visited);
+        } else if (type instanceof TypeDef typeDef) {
+            updateType(digest, typeDef.getDataType(), visited);
+        } else if (type instanceof Array array) {
+            updateType(digest, array.getDataType(), visited);
+        } else if (type instanceof Composite composite) {
+            for (DataTypeComponent component : composite.getDefinedComponents()) {
+                update(digest, component.getOffset() + ":" + component.getFieldName());
+                updateType(digest, component.getDataType(), visited);
+            }
+        } else if (type instanceof Enum enumType) {
+            for (String name : enumType.getNames()) {
+                update(digest, name + "=" + enumType.getValue(name));
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static boolean namesResolve(Program program, DecompSnapshot snapshot) {
+        for (String name : snapshot.symbolNames()) {
+            if (!program.getSymbolTable().getSymbols(name).hasNext()) return false;
+        }
+        return true;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Msg.error(DecompDiskCache.class, "Could not delete " + file, e);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ghidra.notepad;
+
+import ghidra.app.decompiler.*;
+import ghidra.program.model.listing.Function;
+import ghidra.program.model.pcode.*;
+import generic.theme.Gui;
+
+import java.awt.Color;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A decompiled function reduced to what the preview draws: numbered lines of
+ * styled tokens. Built once from the decompiler's markup via PrettyPrinter (the
+ * same formatter the decompiler window uses), it no longer needs a live
+ * ClangTokenGroup, so it can be cached and written to disk. Token styles map to
+ * Ghidra theme keys and are resolved to colours only when drawn.
+ */
+public record DecompSnapshot(String functionName, List<Line> lines,
+                             Set<String> typeNames, Set<String> symbolNames) {
+
+    private static final int FORMAT_MAGIC = 0x4E504453; // "NPDS"
+    private static final int FORMAT_VERSION = 1;
+
+    // C keywords that appear as ClangOpToken — coloured the same as types in the decompiler
+    private static final Set<String> KEYWORDS = Set.of(
+        "if", "else", "while", "do", "for", "return", "goto", "break", "continue",
+        "switch", "case", "default", "sizeof", "typedef", "struct", "union", "enum",
+        "const", "static", "extern", "volatile", "register", "inline", "NULL"
+    );
+
+    /** The same theme keys the decompiler window uses for each kind of token. */
+    public enum TokenStyle {
+        DEFAULT("color.fg"),
+        KEYWORD("color.fg.decompiler.keyword"),
+        TYPE("color.fg.decompiler.type"),
+        FUNCTION_NAME("color.fg.decompiler.function.name"),
+        COMMENT("color.fg.decompiler.comment"),
+        VARIABLE("color.fg.decompiler.variable"),
+        PARAMETER("color.fg.decompiler.parameter"),
+        GLOBAL("color.fg.decompiler.global"),
+        CONSTANT("color.fg.decompiler.constant");
+
+        private final String themeKey;
+
+        TokenStyle(String themeKey) {
+            this.themeKey = themeKey;
+        }
+
+        public Color color() {
+            return Gui.getColor(themeKey);
+        }
+    }
+
+    public record Token(String text, TokenStyle style) {}
+
+    /**
+     * One line as shown in the decompiler window.
+     *
+     * @param lineNumber 1-indexed, matching the decompiler window
+     * @param indent     number of leading spaces
+     */
+    public record Line(int lineNumber, int indent, List<Token> tokens) {}
+
+    /** Every type and symbol name the output mentions. */
+    public Set<String> referencedNames() {
+        Set<String> names = new HashSet<>(typeNames);
+        names.addAll(symbolNames);
+        return names;
+    }
+
+    public int tokenCount() {
+        int n = 0;
+        for (Line line : lines) n += line.tokens().size();
+        return n;
+    }
+
+    /**
+     * @param markup the ClangTokenGroup from DecompileResults.getCCodeMarkup()
+     * @param cText  the plain text from DecompileResults.getDecompiledFunction().getC(),
+     *               used to recover leading whitespace — line N in cText corresponds to
+     *               ClangLine with getLineNumber()==N.
+     */
+    public static DecompSnapshot fromMarkup(Function function, ClangTokenGroup markup, String cText) {
+        List<ClangLine> clangLines = new PrettyPrinter(function, markup, s -> s).getLines();
+
+        // Build an index of plain-text lines for indentation lookup (1-indexed)
+        String[] cLines = (cText != null) ? cText.split("\n", -1) : new String[0];
+
+        List<Line> lines = new ArrayList<>();
+        Set<String> types = new HashSet<>();
+        Set<String> symbols = new HashSet<>();
+        for (ClangLine clangLine : clangLines) {
+            int lineNum = clangLine.getLineNumber();
+            int indent = 0;
+            if (lineNum > 0 && lineNum <= cLines.length) {
+                String cl = cLines[lineNum - 1];
+                while (indent < cl.length() && cl.charAt(indent) == ' ') indent++;
+            }
+            List<Token> tokens = new ArrayList<>();
+            for (ClangToken token : clangLine.getAllTokens()) {
+                String text = token.toString();
+                if (text == null || text.isEmpty()) continue;
+                tokens.add(new Token(text, styleOf(token)));
+                if (token instanceof ClangTypeToken) {
+                    types.add(text);
+                } else if (isSymbol(token)) {
+                    symbols.add(text);
+                }
+            }
+            lines.add(new Line(lineNum, indent, tokens));
+        }
+        return new DecompSnapshot(function.getName(), lines, types, symbols);
+    }
+
+    /** Map ClangToken subclass → the same Ghidra theme color the decompiler window uses. */
+    private static TokenStyle styleOf(ClangToken token) {
+        if (token instanceof ClangTypeToken)     return TokenStyle.TYPE;
+        if (token instanceof ClangFuncNameToken) return TokenStyle.FUNCTION_NAME;
+        if (token instanceof ClangLabelToken)    return TokenStyle.FUNCTION_NAME;
+
+        if (token instanceof ClangCommentToken) return TokenStyle.COMMENT;
+        if (token instanceof ClangFieldToken)   return TokenStyle.VARIABLE;
+
+        if (token instanceof ClangVariableToken vt) {
+            HighVariable high = vt.getHighVariable();
+            if (high instanceof HighParam)  return TokenStyle.PARAMETER;
+            if (high instanceof HighGlobal) return TokenStyle.GLOBAL;
+            // HighConstant (numeric literals), or null high → constant color
+            if (high == null || high instanceof HighConstant) return TokenStyle.CONSTANT;
+            return TokenStyle.VARIABLE;
+        }
+
+        // Keywords may appear as ClangOpToken or ClangSyntaxToken depending on Ghidra version
+        if (token instanceof ClangOpToken || token instanceof ClangSyntaxToken) {
+            String text = token.toString();
+            if (text != null && KEYWORDS.contains(text)) {
+                return TokenStyle.KEYWORD;
+            }
+        }
+
+        // ClangSyntaxToken, ClangBreak, and plain operators — default foreground
+        return TokenStyle.DEFAULT;
+    }
+
+    /** Tokens naming a symbol defined elsewhere in the program: callees, labels and globals. */
+    private static boolean isSymbol(ClangToken token) {
+        return token instanceof ClangFuncNameToken
+            || token instanceof ClangLabelToken
+            || (token instanceof ClangVariableToken vt && vt.getHighVariable() instanceof HighGlobal);
+    }
+
+    // ----- Serialization -----
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(functionName);
+        writeNames(out, typeNames);
+        writeNames(out, symbolNames);
+        out.writeInt(lines.size());
+        for (Line line : lines) {
+            out.writeInt(line.lineNumber());
+            out.writeInt(line.indent());
+            out.writeInt(line.tokens().size());
+            for (Token token : line.tokens()) {
+                out.writeByte(token.style().ordinal());
+                out.writeUTF(token.text());
+            }
+        }
+    }
+
+    public static DecompSnapshot read(DataInputStream in) throws IOException {
+        if (in.readInt() != FORMAT_MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unrecognised decompilation cache entry");
+        }
+        TokenStyle[] styles = TokenStyle.values();
+        String functionName = in.readUTF();
+        Set<String> types = readNames(in);
+        Set<String> symbols = readNames(in);
+        int lineCount = in.readInt();
+        List<Line> lines = new ArrayList<>(lineCount);
+        for (int i = 0; i < lineCount; i++) {
+            int lineNumber = in.readInt();
+            int indent = in.readInt();
+            int tokenCount = in.readInt();
+            List<Token> tokens = new ArrayList<>(tokenCount);
+            for (int j = 0; j < tokenCount; j++) {
+                int style = in.readUnsignedByte();
+                if (style >= styles.length) throw new IOException("Unknown token style " + style);
+                tokens.add(new Token(in.readUTF(), styles[style]));
+            }
+            lines.add(new Line(lineNumber, indent, tokens));
+        }
+        return new DecompSnapshot(functionName, lines, types, symbols);
+    }
+
+    private static void writeNames(DataOutputStream out, Set<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) out.writeUTF(name);
+    }
+
+    private static Set<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < count; i++) names.add(in.readUTF());
+        return names;
+    }
+}
@@ -0,0 +1,328 @@
+package ghidra.notepad;
+
+import ghidra.framework.model.DomainObjectChangeRecord;
+import ghidra.framework.model.DomainObjectChangedEvent;
+import ghidra.framework.model.DomainObjectEvent;
+import ghidra.framework.model.DomainObjectListener;
+import ghidra.framework.model.EventType;
+import ghidra.program.model.address.Address;
+import ghidra.program.model.data.DataType;
+import ghidra.program.model.data.DataTypePath;
+import ghidra.program.model.listing.Function;
+import ghidra.program.model.listing.Program;
+import ghidra.program.util.ProgramChangeRecord;
+import ghidra.program.util.ProgramEvent;
+import ghidra.util.Msg;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import ghidra.notepad.CompositePreviewPanel.DecompOutput;
+
+/**
+ * Caches decompiler output for embedded snippets, keyed by program and address.
+ *
+ * <p>The cache listens to each program it holds entries for and drops only the
+ * entries an edit can affect: functions whose body overlaps a changed address
+ * range, and functions whose output mentions a renamed symbol or a changed data
+ * type. Results whose decompilation raced with a program modification are handed
+ * to their waiters but not kept. Change events arrive on the Swing thread; they are
+ * matched against the entries on a background thread, and lookups for a program
+ * with events still waiting to be matched decompile afresh.
+ *
+ * <p>Completed entries are weighted by the number of tokens in their output and
+ * evicted least-recently-used first once the total exceeds the configured limit.
+ *
+ * <p>Each {@link #get} counts as a waiter until it is {@link #release released};
+ * a decompilation nobody waits for any more is cancelled before it starts.
+ */
+public class DecompileCache implements DomainObjectListener {
+
+    // Address-scoped edits that can change the output of the function containing them
+    private static final Set<EventType> ADDRESS_EVENTS = Set.of(
+        ProgramEvent.FUNCTION_ADDED, ProgramEvent.FUNCTION_REMOVED,
+        ProgramEvent.FUNCTION_CHANGED, ProgramEvent.FUNCTION_BODY_CHANGED,
+        ProgramEvent.SYMBOL_ADDED, ProgramEvent.SYMBOL_REMOVED, ProgramEvent.SYMBOL_RENAMED,
+        ProgramEvent.SYMBOL_PRIMARY_STATE_CHANGED,
+        ProgramEvent.CODE_ADDED, ProgramEvent.CODE_REMOVED, ProgramEvent.CODE_REPLACED,
+        ProgramEvent.MEMORY_BYTES_CHANGED, ProgramEvent.COMMENT_CHANGED,
+        ProgramEvent.REFERENCE_ADDED, ProgramEvent.REFERENCE_REMOVED,
+        ProgramEvent.FALLTHROUGH_CHANGED, ProgramEvent.FLOW_OVERRIDE_CHANGED);
+
+    private static final Set<EventType> DATA_TYPE_EVENTS = Set.of(
+        ProgramEvent.DATA_TYPE_CHANGED, ProgramEvent.DATA_TYPE_RENAMED,
+        ProgramEvent.DATA_TYPE_REPLACED, ProgramEvent.DATA_TYPE_REMOVED);
+
+    public interface InvalidationListener {
+        /** Called on the cache's invalidation thread with the addresses whose entries were dropped. */
+        void decompilationsInvalidated(Program program, Set<String> addresses);
+    }
+
+    /** Default weight limit, in decompiler tokens, across all cached functions. */
+    public static final long DEFAULT_MAX_TOKENS = 500_000;
+
+    private record Key(Program program, String address) {}
+
+    /** A snapshot of the cache's size and hit/miss/eviction counters. */
+    public record Stats(int entries, long tokens, long maxTokens, long hits, long misses, long evictions) {
+        @Override
+        public String toString() {
+            return String.format("%d entries, %d/%d tokens, %d hits, %d misses, %d evictions",
+                entries, tokens, maxTokens, hits, misses, evictions);
+        }
+    }
+
+    /** A cached or in-flight decompilation plus what is needed to decide when it goes stale. */
+    private static final class Entry {
+        final CompletableFuture<DecompOutput> future;
+        final long modificationNumber;
+        Function function;
+        Set<String> referencedNames = Set.of();
+        long weight;  // token count once completed; in-flight entries are never evicted
+        int waiters;
+
+        Entry(CompletableFuture<DecompOutput> future, long modificationNumber) {
+            this.future = future;
+            this.modificationNumber = modificationNumber;
+        }
+    }
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Program> listenedPrograms = new HashSet<>();
+    // Change events received but not yet matched, per program
+    private final Map<Program, Integer> pendingEvents = new HashMap<>();
+    private final ExecutorService invalidator = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Markdown Preview Decompile Invalidator");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile InvalidationListener invalidationListener;
+    private long maxTokens = DEFAULT_MAX_TOKENS;
+    private long totalTokens;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public synchronized void setMaxTokens(long maxTokens) {
+        this.maxTokens = Math.max(1, maxTokens);
+        evictToLimit();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(entries.size(), totalTokens, maxTokens, hits, misses, evictions);
+    }
+
+    public void setInvalidationListener(InvalidationListener listener) {
+        this.invalidationListener = listener;
+    }
+
+    /**
+     * Returns the cached or in-flight decompilation of an address, starting one
+     * with the loader if there is none. Failed or empty results are not kept.
+     */
+    public CompletableFuture<DecompOutput> get(Program program, String address,
+            Supplier<CompletableFuture<DecompOutput>> loader) {
+        Key key = new Key(program, address);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            // In-flight entries are covered by the modification number check on completion
+            if (entry != null && (entry.function == null || !pendingEvents.containsKey(program))) {
+                hits++;
+                entry.waiters++;
+                return entry.future;
+            }
+            if (entry != null) {
+                // An edit not matched yet may have made it stale; its waiters keep the old future
+                totalTokens -= entry.weight;
+                entries.remove(key);
+            }
+            misses++;
+            if (listenedPrograms.add(program)) {
+                program.addListener(this);
+            }
+            entry = new Entry(loader.get(), program.getModificationNumber());
+            entry.waiters = 1;
+            entries.put(key, entry);
+        }
+        Entry added = entry;
+        added.future.whenComplete((output, error) -> completed(key, added, output));
+        return added.future;
+    }
+
+    /**
+     * Withdraws interest in a future returned by {@link #get}. If it was the last
+     * waiter and the decompilation has not finished, the entry is dropped and the
+     * future cancelled, so a queued job is skipped when it reaches the executor.
+     */
+    public synchronized void release(Program program, String address, CompletableFuture<DecompOutput> future) {
+        Key key = new Key(program, address);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.future != future) return;
+        if (--entry.waiters > 0 || future.isDone()) return;
+        entries.remove(key);
+        future.cancel(false);
+    }
+
+    private synchronized void completed(Key key, Entry entry, DecompOutput output) {
+        if (entries.get(key) != entry) return;
+        // A modification while decompiling may or may not have touched this function;
+        // the waiters get the result, but it is not trusted for later renders
+        if (output == null || key.program().getModificationNumber() != entry.modificationNumber) {
+            entries.remove(key);
+            return;
+        }
+        entry.function = output.function();
+        entry.referencedNames = output.snapshot().referencedNames();
+        entry.weight = Math.max(1, output.snapshot().tokenCount());
+        totalTokens += entry.weight;
+        evictToLimit();
+    }
+
+    private void evictToLimit() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalTokens > maxTokens && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.weight == 0) continue;
+            totalTokens -= entry.weight;
+            evictions++;
+            it.remove();
+        }
+    }
+
+    private void remove(Iterator<Map.Entry<Key, Entry>> it, Entry entry) {
+        totalTokens -= entry.weight;
+        it.remove();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalTokens = 0;
+        listenedPrograms.forEach(p -> p.removeListener(this));
+        listenedPrograms.clear();
+    }
+
+    /** Clears the cache and stops the invalidation thread. */
+    public void dispose() {
+        clear();
+        invalidator.shutdownNow();
+    }
+
+    /** Drops every entry for a program that is being closed and stops listening to it. */
+    public synchronized void programClosed(Program program) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().program() == program) remove(it, e.getValue());
+        }
+        if (listenedPrograms.remove(program)) {
+            program.removeListener(this);
+        }
+    }
+
+    @Override
+    public void domainObjectChanged(DomainObjectChangedEvent ev) {
+        if (!(ev.getSource() instanceof Program program)) return;
+        // Delivered on the Swing thread: copy the records and match them elsewhere
+        List<DomainObjectChangeRecord> records = new ArrayList<>();
+        for (DomainObjectChangeRecord record : ev) {
+            records.add(record);
+        }
+        synchronized (this) {
+            pendingEvents.merge(program, 1, Integer::sum);
+        }
+        try {
+            invalidator.execute(() -> invalidate(program, records));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                pendingEvents.computeIfPresent(program, (p, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    private void invalidate(Program program, List<DomainObjectChangeRecord> records) {
+        Set<String> invalidated = new HashSet<>();
+        synchronized (this) {
+            try {
+                for (DomainObjectChangeRecord record : records) {
+                    try {
+                        invalidate(program, record, invalidated);
+                    } catch (RuntimeException e) {
+                        // e.g. a cached function deleted since; the other records still apply
+                        Msg.error(this, "Could not apply program change " + record.getEventType(), e);
+                    }
+                }
+            } finally {
+                pendingEvents.computeIfPresent(program, (p, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+        InvalidationListener listener = invalidationListener;
+        if (!invalidated.isEmpty() && listener != null) {
+            listener.decompilationsInvalidated(program, invalidated);
+        }
+    }
+
+    private void invalidate(Program program, DomainObjectChangeRecord record, Set<String> invalidated) {
+        EventType type = record.getEventType();
+        if (type == DomainObjectEvent.RESTORED) {
+            // Undo, redo or revert: anything may have changed
+            removeWhere(program, entry -> true, invalidated);
+        } else if (DATA_TYPE_EVENTS.contains(type)) {
+            String typeName = dataTypeName(record);
+            removeWhere(program, entry -> typeName == null
+                || entry.referencedNames.contains(typeName), invalidated);
+        } else if (ADDRESS_EVENTS.contains(type) && record instanceof ProgramChangeRecord pcr) {
+            Address start = pcr.getStart();
+            Address end = pcr.getEnd() != null ? pcr.getEnd() : start;
+            String oldName = type == ProgramEvent.SYMBOL_RENAMED && pcr.getOldValue() instanceof String s
+                ? s : null;
+            removeWhere(program, entry -> affects(entry, start, end, oldName), invalidated);
+        }
+    }
+
+    private static boolean affects(Entry entry, Address start, Address end, String renamedFrom) {
+        if (entry.function == null) {
+            // Still in flight; the modification number check on completion covers it
+            return false;
+        }
+        if (renamedFrom != null && entry.referencedNames.contains(renamedFrom)) {
+            return true;
+        }
+        if (start == null) return false;
+        try {
+            if (start.equals(entry.function.getEntryPoint())) return true;
+            return entry.function.getBody().intersects(start, end);
+        } catch (RuntimeException e) {
+            // The function was deleted, so its output is stale anyway
+            return true;
+        }
+    }
+
+    private void removeWhere(Program program, java.util.function.Predicate<Entry> test,
+                             Set<String> invalidated) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().program() == program && test.test(e.getValue())) {
+                invalidated.add(e.getKey().address());
+                remove(it, e.getValue());
+            }
+        }
+    }
+
+    private static String dataTypeName(DomainObjectChangeRecord record) {
+        Object[] candidates = record instanceof ProgramChangeRecord pcr
+            ? new Object[] { pcr.getObject(), record.getOldValue(), record.getNewValue() }
+            : new Object[] { record.getOldValue(), record.getNewValue() };
+        for (Object o : candidates) {
+            if (o instanceof DataType dt) return dt.getName();
+            if (o instanceof DataTypePath path) return path.getDataTypeName();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,217 @@
+package ghidra.notepad;
+
+import ghidra.app.decompiler.DecompInterface;
+import ghidra.app.decompiler.DecompileResults;
+import ghidra.program.model.listing.Function;
+import ghidra.program.model.listing.Program;
+import ghidra.util.task.TaskMonitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a bounded set of warm DecompInterface instances for each open Program so
+ * that embedded snippets reuse running decompiler processes instead of starting
+ * a new one per embed. Instances idle for longer than the idle timeout are
+ * disposed, and all instances for a program are disposed when it closes.
+ */
+public class DecompilerPool {
+    private static final long EVICTION_PERIOD_SECONDS = 15;
+
+    private final Map<Program, ProgramPool> pools = new HashMap<>();
+    private final ScheduledExecutorService evictor;
+    private int parallelism;
+    private long idleTimeoutMillis;
+    private boolean disposed;
+
+    /**
+     * Decompilers for one program: idle instances plus a count of those lent out.
+     * A closed pool lends no more and disposes instances as they come back.
+     */
+    private static final class ProgramPool {
+        final Deque<IdleDecompiler> idle = new ArrayDeque<>();
+        int leased;
+        boolean closed;
+    }
+
+    private record IdleDecompiler(DecompInterface decompiler, long idleSince) {}
+
+    /** A decompiler lent out, with the pool it goes back to. */
+    private record Lease(ProgramPool pool, DecompInterface decompiler) {}
+
+    public DecompilerPool(int parallelism, long idleTimeoutSeconds) {
+        this.parallelism = Math.max(1, parallelism);
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Markdown Notepad Decompiler Eviction");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle,
+            EVICTION_PERIOD_SECONDS, EVICTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Changes the per-program instance limit. Idle instances over a lowered limit
+     * are disposed now; leased ones are disposed as they are released.
+     */
+    public void setParallelism(int parallelism) {
+        List<DecompInterface> surplus = new ArrayList<>();
+        synchronized (this) {
+            this.parallelism = Math.max(1, parallelism);
+            for (ProgramPool pool : pools.values()) {
+                // Longest idle first
+                while (!pool.idle.isEmpty() && pool.leased + pool.idle.size() > this.parallelism) {
+                    surplus.add(pool.idle.pollLast().decompiler());
+                }
+            }
+            notifyAll();
+        }
+        surplus.forEach(DecompInterface::dispose);
+    }
+
+    /** Changes the idle timeout, stopping instances already idle for longer than the new one. */
+    public void setIdleTimeout(long idleTimeoutSeconds) {
+        synchronized (this) {
+            this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+            if (disposed) return;
+        }
+        evictor.execute(this::evictIdle);
+    }
+
+    /**
+     * Decompiles a function using a pooled decompiler for its program. Blocks while
+     * all of that program's decompilers are busy.
+     */
+    public DecompileResults decompileFunction(Function function, int timeoutSeconds,
+            TaskMonitor monitor) throws InterruptedException {
+        Program program = function.getProgram();
+        Lease lease = acquire(program);
+        if (lease == null) return null;
+        try {
+            return lease.decompiler().decompileFunction(function, timeoutSeconds, monitor);
+        } finally {
+            release(program, lease);
+        }
+    }
+
+    private Lease acquire(Program program) throws InterruptedException {
+        ProgramPool pool;
+        synchronized (this) {
+            while (true) {
+                if (disposed || program.isClosed()) return null;
+                pool = pools.computeIfAbsent(program, p -> new ProgramPool());
+                if (pool.closed) return null;
+                IdleDecompiler idle = pool.idle.pollFirst();
+                if (idle != null) {
+                    pool.leased++;
+                    return new Lease(pool, idle.decompiler());
+                }
+                if (pool.leased < parallelism) {
+                    // Reserve the slot, then start the process outside the lock
+                    pool.leased++;
+                    break;
+                }
+                wait();
+            }
+        }
+
+        DecompInterface decompiler = new DecompInterface();
+        if (!decompiler.openProgram(program)) {
+            decompiler.dispose();
+            synchronized (this) {
+                returned(program, pool);
+            }
+            return null;
+        }
+        return new Lease(pool, decompiler);
+    }
+
+    private void release(Program program, Lease lease) {
+        ProgramPool pool = lease.pool();
+        synchronized (this) {
+            returned(program, pool);
+            if (!disposed && !pool.closed && pool.leased + pool.idle.size() < parallelism) {
+                // Most recently used first, so the tail is what goes idle longest
+                pool.idle.addFirst(new IdleDecompiler(lease.decompiler(), System.currentTimeMillis()));
+                return;
+            }
+        }
+        // Program closed, pool disposed or limit lowered while this one was in use
+        lease.decompiler().dispose();
+    }
+
+    /** Gives back a leased slot, dropping a closed pool once nothing is lent from it. */
+    private void returned(Program program, ProgramPool pool) {
+        pool.leased--;
+        if (pool.closed && pool.leased == 0) {
+            pools.remove(program, pool);
+        }
+        notifyAll();
+    }
+
+    private void evictIdle() {
+        List<DecompInterface> expired = new ArrayList<>();
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+            Iterator<Map.Entry<Program, ProgramPool>> it = pools.entrySet().iterator();
+            while (it.hasNext()) {
+                ProgramPool pool = it.next().getValue();
+                while (!pool.idle.isEmpty() && pool.idle.peekLast().idleSince() < cutoff) {
+                    expired.add(pool.idle.pollLast().decompiler());
+                }
+                if (pool.idle.isEmpty() && pool.leased == 0) {
+                    it.remove();
+                }
+            }
+        }
+        expired.forEach(DecompInterface::dispose);
+    }
+
+    /**
+     * Disposes every idle decompiler for a program that is being closed. The pool
+     * is kept, closed, until its leased decompilers are returned and disposed.
+     */
+    public void programClosed(Program program) {
+        List<DecompInterface> closing = new ArrayList<>();
+        synchronized (this) {
+            ProgramPool pool = pools.get(program);
+            if (pool == null) return;
+            pool.closed = true;
+            pool.idle.forEach(idle -> closing.add(idle.decompiler()));
+            pool.idle.clear();
+            if (pool.leased == 0) pools.remove(program);
+            notifyAll();
+        }
+        closing.forEach(DecompInterface::dispose);
+    }
+
+    /** Disposes all decompilers and stops eviction. Leased instances are disposed on release. */
+    public void dispose() {
+        List<DecompInterface> closing = new ArrayList<>();
+        synchronized (this) {
+            disposed = true;
+            for (ProgramPool pool : pools.values()) {
+                pool.closed = true;
+                pool.idle.forEach(idle -> closing.add(idle.decompiler()));
+                pool.idle.clear();
+            }
+            pools.clear();
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        closing.forEach(DecompInterface::dispose);
+    }
+}
@@ -0,0 +1,106 @@
+package ghidra.notepad;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Holds the live DocumentStates (editor, undo history, syntax tokens, folds)
+ * for recently opened notes, bounded to a number of editors.
+ *
+ * <p>Once over the limit, the least recently opened clean documents are
+ * detached, released and only their {@link DocumentState.ViewState} kept, so reopening
+ * one rebuilds the editor from disk and puts the caret, scroll position and
+ * folds back. Documents with unsaved changes and the document being edited are
+ * never released, even if that leaves the cache over its limit.
+ */
+public class DocumentCache {
+    public static final int DEFAULT_MAX_EDITORS = 16;
+
+    // Insertion-ordered and re-inserted on open, so lookups from painting the tree don't count as use
+    private final LinkedHashMap<Path, DocumentState> live = new LinkedHashMap<>();
+    private final Map<Path, DocumentState.ViewState> released = new HashMap<>();
+    private int maxEditors = DEFAULT_MAX_EDITORS;
+
+    /** Changes the limit, releasing documents over a lowered one; the last opened is kept. */
+    public void setMaxEditors(int maxEditors) {
+        this.maxEditors = Math.max(1, maxEditors);
+        Path current = null;
+        for (Path path : live.keySet()) current = path;
+        releaseOverLimit(current);
+    }
+
+    /** The live document for a path, if any, without marking it as used. */
+    public DocumentState get(Path path) {
+        return live.get(path);
+    }
+
+    public Collection<DocumentState> values() {
+        return live.values();
+    }
+
+    /** Live documents, least recently opened first. */
+    public Map<Path, DocumentState> entries() {
+        return Collections.unmodifiableMap(live);
+    }
+
+    /**
+     * Marks a document as the one being edited, adding it if new, then
+     * releases older clean documents beyond the limit.
+     */
+    public void open(Path path, DocumentState state) {
+        live.remove(path);
+        live.put(path, state);
+        released.remove(path);
+        releaseOverLimit(path);
+    }
+
+    /** Takes the view left behind when a document's editor was released, or null. */
+    public DocumentState.ViewState takeReleasedView(Path path) {
+        return released.remove(path);
+    }
+
+    public void remove(Path path) {
+        DocumentState state = live.remove(path);
+        if (state != null) state.detach();
+        released.remove(path);
+    }
+
+    /** Re-keys every document at or under a renamed or moved path. */
+    public void move(Path oldPath, Path newPath) {
+        moveKeys(live, oldPath, newPath);
+        moveKeys(released, oldPath, newPath);
+    }
+
+    private static <V> void moveKeys(Map<Path, V> map, Path oldPath, Path newPath) {
+        // Keeps the live map's use order
+        Map<Path, V> moved = new LinkedHashMap<>();
+        map.forEach((path, value) -> moved.put(
+            path.startsWith(oldPath) ? newPath.resolve(oldPath.relativize(path)) : path, value));
+        map.clear();
+        map.putAll(moved);
+    }
+
+    public void clear() {
+        live.values().forEach(DocumentState::detach);
+        live.clear();
+        released.clear();
+    }
+
+    public int size() {
+        return live.size();
+    }
+
+    private void releaseOverLimit(Path current) {
+        Iterator<Map.Entry<Path, DocumentState>> it = live.entrySet().iterator();
+        while (live.size() > maxEditors && it.hasNext()) {
+            Map.Entry<Path, DocumentState> entry = it.next();
+            DocumentState state = entry.getValue();
+            if (entry.getKey().equals(current) || state.hasUnsavedChanges()) {
+                continue;
+            }
+            released.put(entry.getKey(), state.captureViewState());
+            state.detach();
+            it.remove();
+        }
+    }
+}
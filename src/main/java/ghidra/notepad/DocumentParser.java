@@ -0,0 +1,71 @@
+package ghidra.notepad;
+
+import ghidra.util.Msg;
+
+import org.commonmark.parser.Parser;
+
+import javax.swing.SwingUtilities;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Parses the open note into a {@link ParsedDocument} on a background thread.
+ *
+ * <p>Every edit moves the revision on, and a parse is only published if no edit
+ * happened after its text was taken, so each revision is parsed at most once and
+ * views never see a tree for text the editor no longer holds. All methods must be
+ * called on the EDT, and results are delivered there.
+ */
+public class DocumentParser {
+    private final Parser parser;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Markdown Notepad Parser");
+        t.setDaemon(true);
+        return t;
+    });
+    private long revision;
+    private ParsedDocument latest; // reused by the next parse for unchanged blocks
+    private Future<?> pending;
+
+    public DocumentParser(Parser parser) {
+        this.parser = parser;
+    }
+
+    /** Marks the text as changed, dropping any parse of the previous revision. */
+    public void invalidate() {
+        revision++;
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+
+    /** Parses text as a new revision and hands the result to {@code onParsed} unless it is superseded. */
+    public void parse(String text, Consumer<ParsedDocument> onParsed) {
+        invalidate();
+        long parseRevision = revision;
+        ParsedDocument previous = latest;
+        pending = executor.submit(() -> {
+            ParsedDocument document;
+            try {
+                document = ParsedDocument.parse(parser, text, previous);
+            } catch (RuntimeException e) {
+                Msg.error(this, "Could not parse note", e);
+                return;
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (parseRevision != revision) return;
+                pending = null;
+                latest = document;
+                onParsed.accept(document);
+            });
+        });
+    }
+
+    public void dispose() {
+        invalidate();
+        executor.shutdownNow();
+    }
+}
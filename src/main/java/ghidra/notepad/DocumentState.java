@@ -6,8 +6,12 @@ import javax.swing.tree.*;
 import java.awt.Rectangle;
 import java.awt.Font;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 import org.fife.ui.rsyntaxtextarea.SyntaxConstants;
+import org.fife.ui.rsyntaxtextarea.folding.Fold;
+import org.fife.ui.rsyntaxtextarea.folding.FoldManager;
 /**
  * Maintains the state of an individual document within the Markdown Notepad,
  * including its text content, editing history, and unsaved changes status.
@@ -22,6 +26,14 @@ public class DocumentState {
     private final DefaultMutableTreeNode treeNode;
     private final JTree fileTree;
     private final Runnable undoRedoStateCallback;  // Add callback for undo/redo state updates
+    private DocumentListener attachedListener;      // The provider's wiring, while this document is live
+
+    /**
+     * Where the user was in a document: caret, scroll position and collapsed
+     * folds. Small enough to keep for every note visited after its editor is
+     * released.
+     */
+    public record ViewState(int caretPosition, Rectangle visibleRect, List<Integer> collapsedFoldLines) {}
     
     public DocumentState(String content, Path file, DefaultTreeModel treeModel, 
             DefaultMutableTreeNode node, JTree fileTree, Runnable undoRedoStateCallback) {
@@ -96,6 +108,78 @@ public class DocumentState {
         }
     }
     
+    /**
+     * Wires the provider's change handling to this document. Attaching the same
+     * listener again is a no-op, so revisiting a note never stacks listeners.
+     */
+    public void attach(DocumentListener listener) {
+        if (attachedListener == listener) return;
+        detach();
+        editor.getDocument().addDocumentListener(listener);
+        attachedListener = listener;
+    }
+
+    /** Removes the provider's wiring, when the document is released or closed. */
+    public void detach() {
+        if (attachedListener != null) {
+            editor.getDocument().removeDocumentListener(attachedListener);
+            attachedListener = null;
+        }
+    }
+
+    public boolean isAttached() {
+        return attachedListener != null;
+    }
+
+    /** Every listener on the editor's document, including RSyntaxTextArea's own; for diagnostics. */
+    public int getDocumentListenerCount() {
+        if (editor.getDocument() instanceof javax.swing.text.AbstractDocument doc) {
+            return doc.getDocumentListeners().length;
+        }
+        return -1;
+    }
+
+    public ViewState captureViewState() {
+        List<Integer> collapsed = new ArrayList<>();
+        FoldManager folds = editor.getFoldManager();
+        for (int i = 0; i < folds.getFoldCount(); i++) {
+            collectCollapsed(folds.getFold(i), collapsed);
+        }
+        return new ViewState(editor.getCaretPosition(), editor.getVisibleRect(), collapsed);
+    }
+
+    private static void collectCollapsed(Fold fold, List<Integer> collapsed) {
+        if (fold.isCollapsed()) {
+            collapsed.add(fold.getStartLine());
+        }
+        for (int i = 0; i < fold.getChildCount(); i++) {
+            collectCollapsed(fold.getChild(i), collapsed);
+        }
+    }
+
+    /** Puts back a view captured from an earlier editor for the same file, as far as it still fits. */
+    public void restoreViewState(ViewState state) {
+        editor.setCaretPosition(Math.min(state.caretPosition(), editor.getDocument().getLength()));
+        if (!state.collapsedFoldLines().isEmpty()) {
+            FoldManager folds = editor.getFoldManager();
+            folds.reparse();
+            for (int i = 0; i < folds.getFoldCount(); i++) {
+                restoreCollapsed(folds.getFold(i), state.collapsedFoldLines());
+            }
+        }
+        // Scrolling needs the editor laid out in its new scroll pane
+        SwingUtilities.invokeLater(() -> editor.scrollRectToVisible(state.visibleRect()));
+    }
+
+    private static void restoreCollapsed(Fold fold, List<Integer> collapsedLines) {
+        if (collapsedLines.contains(fold.getStartLine())) {
+            fold.setCollapsed(true);
+        }
+        for (int i = 0; i < fold.getChildCount(); i++) {
+            restoreCollapsed(fold.getChild(i), collapsedLines);
+        }
+    }
+
     public String getContent() { 
         return editor.getText(); 
     }
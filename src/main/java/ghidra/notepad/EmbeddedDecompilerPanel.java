@@ -1,38 +1,25 @@
 package ghidra.notepad;
 
-import ghidra.app.decompiler.*;
-import ghidra.program.model.listing.Function;
-import ghidra.program.model.pcode.*;
-import ghidra.app.decompiler.ClangSyntaxToken;
 import generic.theme.Gui;
 
 import javax.swing.*;
 import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.List;
-import java.util.Set;
 
 /**
  * Renders a slice of Ghidra-decompiled C code inline in the markdown preview.
  *
- * Uses PrettyPrinter (the same formatter the decompiler window uses) to get
- * ClangLine objects with exact line numbers, then colours each token using the
- * same Ghidra theme keys the decompiler window uses — giving a pixel-perfect
- * match in both layout and colour.
+ * Draws a {@link DecompSnapshot}, whose lines come from PrettyPrinter (the same
+ * formatter the decompiler window uses) and whose tokens carry the same Ghidra
+ * theme keys the decompiler window uses — giving a pixel-perfect match in both
+ * layout and colour.
  */
 public class EmbeddedDecompilerPanel extends JPanel {
     private static final int LINE_HEIGHT = 19;
     private static final int MIN_HEIGHT  = 60;
     private static final int MAX_HEIGHT  = 400;
 
-    // C keywords that appear as ClangOpToken — coloured the same as types in the decompiler
-    private static final Set<String> KEYWORDS = Set.of(
-        "if", "else", "while", "do", "for", "return", "goto", "break", "continue",
-        "switch", "case", "default", "sizeof", "typedef", "struct", "union", "enum",
-        "const", "static", "extern", "volatile", "register", "inline", "NULL"
-    );
-
     private static final int BASE_CODE_PT = 13;
 
     private final JTextPane   codePane;
@@ -41,9 +28,7 @@ public class EmbeddedDecompilerPanel extends JPanel {
     private float             zoomFactor = 1.0f;
 
     // Cached state for re-rendering when zoom changes
-    private Function           lastFunction;
-    private ClangTokenGroup    lastMarkup;
-    private String             lastCText;
+    private DecompSnapshot     lastSnapshot;
     private Integer            lastStartLine;
     private Integer            lastEndLine;
 
@@ -54,8 +39,8 @@ public class EmbeddedDecompilerPanel extends JPanel {
     public void setZoomFactor(float zoom) {
         this.zoomFactor = zoom;
         applyFonts();
-        if (lastFunction != null) {
-            render(lastFunction, lastMarkup, lastCText, lastStartLine, lastEndLine);
+        if (lastSnapshot != null) {
+            render(lastSnapshot, lastStartLine, lastEndLine);
         }
     }
 
@@ -97,45 +82,38 @@ public class EmbeddedDecompilerPanel extends JPanel {
         setStatusText("Decompiling…");
     }
 
+    /**
+     * The height the panel settles at for a line range, for laying out the
+     * preview before the decompilation is available. A whole function is
+     * assumed to fill the maximum height.
+     */
+    public static int estimateHeight(Integer startLine, Integer endLine) {
+        int code = MAX_HEIGHT;
+        if (startLine != null && endLine != null) {
+            int lines = Math.max(1, endLine - startLine + 1);
+            code = Math.max(MIN_HEIGHT, Math.min(lines * LINE_HEIGHT + 14, MAX_HEIGHT));
+        }
+        return code + 16;  // panel border top(8) + bottom(8)
+    }
+
     public void setStatusText(String message) {
         codePane.setBackground(codeBg());
         codePane.setText(message);
     }
 
     /**
-     * Render a slice of the decompiled function using PrettyPrinter — the same
-     * line-formatting engine the decompiler window uses — so line numbers and
-     * token colours match the decompiler window exactly.
+     * Render a slice of a decompiled function. Line numbers and token colours
+     * match the decompiler window exactly.
      *
-     * @param function  the Ghidra function object (needed by PrettyPrinter)
-     * @param markup    the ClangTokenGroup from DecompileResults.getCCodeMarkup()
+     * @param snapshot  the formatted function, fresh from the decompiler or read back from disk
      * @param startLine first line to show, 1-indexed, matching the decompiler window (null = start)
      * @param endLine   last line to show, inclusive (null = end)
      */
-    /**
-     * @param cText the plain text from DecompileResults.getDecompiledFunction().getC(),
-     *              used to recover leading whitespace — line N in cText corresponds to
-     *              ClangLine with getLineNumber()==N.
-     */
-    public void render(Function function, ClangTokenGroup markup, String cText,
-                       Integer startLine, Integer endLine) {
-        lastFunction  = function;
-        lastMarkup    = markup;
-        lastCText     = cText;
+    public void render(DecompSnapshot snapshot, Integer startLine, Integer endLine) {
+        lastSnapshot  = snapshot;
         lastStartLine = startLine;
         lastEndLine   = endLine;
 
-        List<ClangLine> lines;
-        try {
-            lines = new PrettyPrinter(function, markup, s -> s).getLines();
-        } catch (Exception e) {
-            setStatusText("// Error formatting decompiler output: " + e.getMessage());
-            return;
-        }
-
-        // Build an index of plain-text lines for indentation lookup (1-indexed)
-        String[] cLines = (cText != null) ? cText.split("\n", -1) : new String[0];
-
         // getLineNumber() is 0-indexed; the decompiler window displays 1-indexed line numbers,
         // so subtract 1 to convert user-specified line numbers to internal line numbers.
         int from = startLine != null ? startLine - 1 : 0;
@@ -146,8 +124,8 @@ public class EmbeddedDecompilerPanel extends JPanel {
         int matchedLines  = 0;
 
         try {
-            for (ClangLine line : lines) {
-                int lineNum = line.getLineNumber();
+            for (DecompSnapshot.Line line : snapshot.lines()) {
+                int lineNum = line.lineNumber();
                 if (lineNum < from || lineNum > to) continue;
 
                 if (!firstLine) {
@@ -156,22 +134,13 @@ public class EmbeddedDecompilerPanel extends JPanel {
                 firstLine = false;
                 matchedLines++;
 
-                // Indentation comes from the plain C text — PrettyPrinter line numbers
-                // are 1-indexed and map directly to cLines[lineNum-1].
-                if (lineNum > 0 && lineNum <= cLines.length) {
-                    String cl = cLines[lineNum - 1];
-                    int wsLen = 0;
-                    while (wsLen < cl.length() && cl.charAt(wsLen) == ' ') wsLen++;
-                    if (wsLen > 0) {
-                        doc.insertString(doc.getLength(), cl.substring(0, wsLen),
-                            monoAttrs(Gui.getColor("color.fg")));
-                    }
+                if (line.indent() > 0) {
+                    doc.insertString(doc.getLength(), " ".repeat(line.indent()),
+                        monoAttrs(Gui.getColor("color.fg")));
                 }
 
-                for (ClangToken token : line.getAllTokens()) {
-                    String text = token.toString();
-                    if (text == null || text.isEmpty()) continue;
-                    doc.insertString(doc.getLength(), text, monoAttrs(tokenColor(token)));
+                for (DecompSnapshot.Token token : line.tokens()) {
+                    doc.insertString(doc.getLength(), token.text(), monoAttrs(token.style().color()));
                 }
             }
         } catch (BadLocationException e) {
@@ -181,7 +150,7 @@ public class EmbeddedDecompilerPanel extends JPanel {
         String rangeStr = startLine == null ? ""
             : startLine.equals(endLine) ? " [" + startLine + "]"
             : " [" + startLine + "–" + endLine + "]";
-        codePane.setToolTipText(function.getName() + rangeStr);
+        codePane.setToolTipText(snapshot.functionName() + rangeStr);
 
         codePane.setDocument(doc);
         codePane.setBackground(codeBg());
@@ -230,35 +199,4 @@ public class EmbeddedDecompilerPanel extends JPanel {
         StyleConstants.setFontSize(attrs, Math.max(1, Math.round(BASE_CODE_PT * zoomFactor)));
         return attrs;
     }
-
-    /** Map ClangToken subclass → the same Ghidra theme color the decompiler window uses. */
-    private static Color tokenColor(ClangToken token) {
-        if (token instanceof ClangTypeToken)     return Gui.getColor("color.fg.decompiler.type");
-        if (token instanceof ClangFuncNameToken) return Gui.getColor("color.fg.decompiler.function.name");
-        if (token instanceof ClangLabelToken)    return Gui.getColor("color.fg.decompiler.function.name");
-
-        if (token instanceof ClangCommentToken) return Gui.getColor("color.fg.decompiler.comment");
-        if (token instanceof ClangFieldToken)   return Gui.getColor("color.fg.decompiler.variable");
-
-        if (token instanceof ClangVariableToken vt) {
-            HighVariable high = vt.getHighVariable();
-            if (high instanceof HighParam)  return Gui.getColor("color.fg.decompiler.parameter");
-            if (high instanceof HighGlobal) return Gui.getColor("color.fg.decompiler.global");
-            // HighConstant (numeric literals), or null high → constant color
-            if (high == null || high instanceof HighConstant)
-                return Gui.getColor("color.fg.decompiler.constant");
-            return Gui.getColor("color.fg.decompiler.variable");
-        }
-
-        // Keywords may appear as ClangOpToken or ClangSyntaxToken depending on Ghidra version
-        if (token instanceof ClangOpToken || token instanceof ClangSyntaxToken) {
-            String text = token.toString();
-            if (text != null && KEYWORDS.contains(text)) {
-                return Gui.getColor("color.fg.decompiler.keyword");
-            }
-        }
-
-        // ClangSyntaxToken, ClangBreak, and plain operators — default foreground
-        return Gui.getColor("color.fg");
-    }
 }
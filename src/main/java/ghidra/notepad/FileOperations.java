@@ -4,11 +4,10 @@ import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import java.awt.Color;
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.*;
-import javax.imageio.ImageIO;
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 import generic.theme.Gui;
 
@@ -23,36 +22,48 @@ import java.util.Collections;
  * content loading/saving operations within the note collection.
  */
 public class FileOperations {
+    /** Directory inside a collection holding derived data; hidden from the file tree. */
+    public static final String CACHE_DIRECTORY_NAME = ".notepad";
+
+    /** True for the collection's cache directory and anything inside it. */
+    public static boolean isCachePath(Path collection, Path path) {
+        Path relative = collection.relativize(path);
+        return relative.getNameCount() > 0
+            && relative.getName(0).toString().equals(CACHE_DIRECTORY_NAME);
+    }
+
     private final JPanel mainPanel;
     private final CompositePreviewPanel previewPanel;
     private final Path currentDirectory;
     private final JTabbedPane tabbedPane;
-    private final Runnable refreshTreeCallback;
+    private final TreeOperations treeOperations;
     private final LoadFileCallback loadFileCallback;
     private final DocumentStateHandler documentStateHandler;
     private final FileStateHandler fileStateHandler;
     private final DefaultTreeModel treeModel;
     private final JTree fileTree;
+    private final SearchIndex searchIndex;
 
     public interface LoadFileCallback {
         void loadFile(Path file);
     }
 
     public FileOperations(JPanel mainPanel, CompositePreviewPanel previewPanel, Path currentDirectory,
-                        JTabbedPane tabbedPane, Runnable refreshTreeCallback,
+                        JTabbedPane tabbedPane, TreeOperations treeOperations,
                         LoadFileCallback loadFileCallback, DocumentStateHandler documentStateHandler,
                         FileStateHandler fileStateHandler, DefaultTreeModel treeModel,
-                        JTree fileTree) {
+                        JTree fileTree, SearchIndex searchIndex) {
         this.mainPanel = mainPanel;
         this.previewPanel = previewPanel;
         this.currentDirectory = currentDirectory;
         this.tabbedPane = tabbedPane;
-        this.refreshTreeCallback = refreshTreeCallback;
+        this.treeOperations = treeOperations;
         this.loadFileCallback = loadFileCallback;
         this.documentStateHandler = documentStateHandler;
         this.fileStateHandler = fileStateHandler;
         this.treeModel = treeModel;
         this.fileTree = fileTree;
+        this.searchIndex = searchIndex;
     }
 
     public void createNewDocument(Path targetDir, String fileName) {
@@ -77,7 +88,8 @@ public class FileOperations {
                 );
             
             Files.writeString(newFile, template);
-            refreshTreeCallback.run();
+            searchIndex.update(newFile, template);
+            treeOperations.addPath(newFile);
             loadFileCallback.loadFile(newFile);
             
         } catch (IOException e) {
@@ -101,7 +113,7 @@ public class FileOperations {
 
         try {
             Files.createDirectory(newDir);
-            refreshTreeCallback.run();
+            treeOperations.addPath(newDir);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(mainPanel,
                 "Error creating directory: " + e.getMessage(),
@@ -113,6 +125,7 @@ public class FileOperations {
     public void saveFile(Path file, String content) {
         try {
             Files.writeString(file, content);
+            searchIndex.update(file, content);
         } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(mainPanel,
@@ -127,7 +140,7 @@ public class FileOperations {
         Color foregroundColor = Gui.getColor("color.fg");
         try {
             // Clear TOC for image files
-            tableOfContents.updateToc("", null);
+            tableOfContents.clear();
 
             // Disable edit tab for images
             tabbedPane.setEnabledAt(0, false);
@@ -135,13 +148,13 @@ public class FileOperations {
             // Switch to preview tab
             tabbedPane.setSelectedIndex(1);
 
-            // Load and scale the image
-            BufferedImage img = ImageIO.read(file.toFile());
+            // Size the image from its header; the pane decodes it when painting
+            Dimension img = ImageMetadataCache.getDimensions(file);
             if (img != null) {
-                double scale = Math.min(800.0 / img.getWidth(), 600.0 / img.getHeight());
+                double scale = Math.min(800.0 / img.width, 600.0 / img.height);
                 if (scale < 1.0) {
-                    int newWidth  = (int) (img.getWidth()  * scale);
-                    int newHeight = (int) (img.getHeight() * scale);
+                    int newWidth  = (int) (img.width  * scale);
+                    int newHeight = (int) (img.height * scale);
                     previewPanel.setDirectHtml(String.format("""
                         <html>
                         <body style='text-align: center; margin: 0; padding: 20px; background-color: %s;'>
@@ -156,7 +169,7 @@ public class FileOperations {
                         getHexColor(backgroundColor), file.toUri(),
                         newWidth, newHeight,
                         getHexColor(foregroundColor),
-                        img.getWidth(), img.getHeight()));
+                        img.width, img.height));
                 } else {
                     previewPanel.setDirectHtml(String.format("""
                         <html>
@@ -167,7 +180,7 @@ public class FileOperations {
                         </html>
                         """,
                         getHexColor(backgroundColor), file.toUri(),
-                        img.getWidth(), img.getHeight()));
+                        img.width, img.height));
                 }
             }
         } catch (IOException e) {
@@ -241,6 +254,7 @@ public class FileOperations {
             try {
                 Path path = fileNode.getPath();
                 Files.delete(path);
+                searchIndex.remove(path);
                 
                 // Clean up document states
                 documentStateHandler.removeDocumentState(path);
@@ -253,7 +267,7 @@ public class FileOperations {
                     fileStateHandler.swapEditor(newEditor);
                 }
                 
-                refreshTreeCallback.run();
+                treeOperations.removePath(path);
                 
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(mainPanel,
@@ -302,12 +316,13 @@ public class FileOperations {
                 
                 // Move the file
                 Files.move(oldPath, newPath);
+                searchIndex.move(oldPath, newPath);
                 
                 // Update document states
                 documentStateHandler.updateDocumentStates(oldPath, newPath);
                 
-                // Refresh the tree to show the new name
-                refreshTreeCallback.run();
+                // Show the new name in the tree
+                treeOperations.movePath(oldPath, newPath);
                 
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(mainPanel,
@@ -347,8 +362,9 @@ public class FileOperations {
                             e.printStackTrace();
                         }
                     });
+                searchIndex.remove(dirPath);
                 
-                refreshTreeCallback.run();
+                treeOperations.removePath(dirPath);
                 
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(mainPanel,
@@ -384,11 +400,12 @@ public class FileOperations {
                 
                 // Move the directory
                 Files.move(dirPath, newPath);
+                searchIndex.move(dirPath, newPath);
                 
                 // Update document states for all files in the directory
                 documentStateHandler.updateDocumentStates(dirPath, newPath);
                 
-                refreshTreeCallback.run();
+                treeOperations.movePath(dirPath, newPath);
                 
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(mainPanel,
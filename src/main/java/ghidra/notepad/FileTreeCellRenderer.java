@@ -6,18 +6,46 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.imageio.ImageIO;
 
 import generic.theme.Gui;
 
+/**
+ * Renders collection tree nodes. Image files show a thumbnail, decoded on a
+ * background thread while the row shows the plain file icon. Thumbnails are
+ * kept until the watcher reports the image changed, so painting never touches
+ * the disk.
+ */
 public class FileTreeCellRenderer extends DefaultTreeCellRenderer {
     private static final int THUMBNAIL_SIZE = 16; // Size to match other icons
+    private static final int MAX_THUMBNAILS = 1024;
+
+    // Shared by every renderer; a theme change replaces the renderer but not pending work
+    private static final ExecutorService THUMBNAIL_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Markdown Notepad Thumbnails");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Shared by every renderer, so a theme change keeps them; access-ordered, bounded and only
+    // touched on the EDT. Unreadable images map to null and show the file icon.
+    private static final Map<Path, Icon> THUMBNAILS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Icon> eldest) {
+            return size() > MAX_THUMBNAILS;
+        }
+    };
+    // Decodes in flight; a result is only kept if its request is still the current one
+    private static final Map<Path, Object> PENDING_THUMBNAILS = new HashMap<>();
+
     private final Icon folderIcon = UIManager.getIcon("Tree.closedIcon");
     private final Icon expandedFolderIcon = UIManager.getIcon("Tree.openIcon");
     private final Icon fileIcon = UIManager.getIcon("Tree.leafIcon");
-    private final Map<Path, Icon> imageIconCache = new HashMap<>();
     private final DocumentStateHandler documentStateHandler;
     private final DefaultMutableTreeNode rootNode;
     private final Color background;
@@ -71,9 +99,7 @@ public class FileTreeCellRenderer extends DefaultTreeCellRenderer {
             
             if (fileName.endsWith(".png") || fileName.endsWith(".jpg") || 
                 fileName.endsWith(".jpeg") || fileName.endsWith(".gif")) {
-                // Get or create thumbnail icon
-                Icon thumbnail = imageIconCache.computeIfAbsent(filePath, this::createThumbnail);
-                setIcon(thumbnail != null ? thumbnail : fileIcon);
+                setIcon(getThumbnail(tree, node, filePath));
             } else {
                 setIcon(fileIcon);
             }
@@ -90,6 +116,9 @@ public class FileTreeCellRenderer extends DefaultTreeCellRenderer {
                 setText(fileNode.toString());
             }
             setToolTipText(fileNode.toString());
+        } else if (node instanceof TreeOperations.LoadingNode) {
+            setIcon(null);
+            setText(value.toString());
         } else {
             setIcon(expanded ? expandedFolderIcon : folderIcon);
             setText(value.toString());
@@ -98,9 +127,58 @@ public class FileTreeCellRenderer extends DefaultTreeCellRenderer {
         return this;
     }
     
-    private Icon createThumbnail(Path imagePath) {
+    /**
+     * Returns the cached thumbnail of an image, or the file icon while one is
+     * decoded in the background. When it is ready only the node's row is repainted.
+     */
+    private Icon getThumbnail(JTree tree, DefaultMutableTreeNode node, Path imagePath) {
+        Icon icon = THUMBNAILS.get(imagePath);
+        if (icon != null) return icon;
+        if (THUMBNAILS.containsKey(imagePath)) return fileIcon;
+        if (!PENDING_THUMBNAILS.containsKey(imagePath)) {
+            Object request = new Object();
+            PENDING_THUMBNAILS.put(imagePath, request);
+            THUMBNAIL_EXECUTOR.execute(() -> {
+                Icon thumbnail = createThumbnail(imagePath);
+                SwingUtilities.invokeLater(() -> {
+                    // Invalidated while it was decoded; the next paint asks again
+                    if (PENDING_THUMBNAILS.get(imagePath) != request) return;
+                    PENDING_THUMBNAILS.remove(imagePath);
+                    THUMBNAILS.put(imagePath, thumbnail);
+                    Rectangle row = tree.getPathBounds(new TreePath(node.getPath()));
+                    if (row != null) tree.repaint(row);
+                });
+            });
+        }
+        return fileIcon;
+    }
+
+    /**
+     * Forgets the thumbnails of an image, or of everything under a directory,
+     * changed on disk. Returns true if one was shown. Call on the EDT.
+     */
+    public static boolean invalidateThumbnails(Path path) {
+        PENDING_THUMBNAILS.keySet().removeIf(p -> p.startsWith(path));
+        return THUMBNAILS.keySet().removeIf(p -> p.startsWith(path));
+    }
+
+    /** Forgets every thumbnail, for when changes on disk may have been missed. Call on the EDT. */
+    public static void clearThumbnails() {
+        THUMBNAILS.clear();
+        PENDING_THUMBNAILS.clear();
+    }
+
+    private static Icon createThumbnail(Path imagePath) {
         try {
-            BufferedImage img = ImageIO.read(imagePath.toFile());
+            Dimension size = ImageMetadataCache.getDimensions(imagePath);
+            if (size == null) return null;
+            double fit = Math.min((double) THUMBNAIL_SIZE / size.width, (double) THUMBNAIL_SIZE / size.height);
+            // Skip most source pixels while decoding; small images are read as they are
+            BufferedImage img = fit < 1.0
+                ? ScaledImageCache.readScaled(imagePath,
+                    Math.max(1, (int) (size.width * fit)), Math.max(1, (int) (size.height * fit)))
+                : null;
+            if (img == null) img = ImageIO.read(imagePath.toFile());
             if (img != null) {
                 // Scale the image maintaining aspect ratio
                 double scale = Math.min(
@@ -124,8 +202,4 @@ public class FileTreeCellRenderer extends DefaultTreeCellRenderer {
         }
         return null;
     }
-    
-    public void clearCache() {
-        imageIconCache.clear();
-    }
 }
\ No newline at end of file
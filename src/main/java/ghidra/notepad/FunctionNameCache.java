@@ -0,0 +1,145 @@
+package ghidra.notepad;
+
+import ghidra.framework.model.DomainObjectChangeRecord;
+import ghidra.framework.model.DomainObjectChangedEvent;
+import ghidra.framework.model.DomainObjectEvent;
+import ghidra.framework.model.DomainObjectListener;
+import ghidra.framework.model.EventType;
+import ghidra.program.model.address.AddressSpace;
+import ghidra.program.model.listing.Function;
+import ghidra.program.model.listing.FunctionManager;
+import ghidra.program.model.listing.Program;
+import ghidra.program.util.ProgramChangeRecord;
+import ghidra.program.util.ProgramEvent;
+
+import java.util.*;
+
+/**
+ * Caches the function names shown for {@code {addr}} references, keyed by
+ * program and offset. Addresses with no function are cached too, so a note's
+ * references are only looked up once until the program changes.
+ *
+ * <p>The cache listens to each program it holds names for and forgets only the
+ * offsets a function or symbol event touches.
+ */
+public class FunctionNameCache implements DomainObjectListener {
+
+    private static final Set<EventType> NAME_EVENTS = Set.of(
+        ProgramEvent.FUNCTION_ADDED, ProgramEvent.FUNCTION_REMOVED,
+        ProgramEvent.SYMBOL_ADDED, ProgramEvent.SYMBOL_REMOVED, ProgramEvent.SYMBOL_RENAMED,
+        ProgramEvent.SYMBOL_PRIMARY_STATE_CHANGED);
+
+    // Cached in place of a name where there is no function
+    private static final String NO_FUNCTION = "";
+
+    public interface InvalidationListener {
+        /** Called on the Swing thread when names shown for a program may have changed. */
+        void functionNamesInvalidated(Program program);
+    }
+
+    private final Map<Program, Map<Long, String>> names = new HashMap<>();
+    private InvalidationListener invalidationListener;
+
+    public void setInvalidationListener(InvalidationListener listener) {
+        this.invalidationListener = listener;
+    }
+
+    /**
+     * Returns the display name for each address: the function starting there,
+     * or the address itself if there is none. Uncached addresses are resolved
+     * together in one pass.
+     */
+    public Map<String, String> getNames(Program program, Collection<String> addresses) {
+        Map<String, String> result = new HashMap<>();
+        Map<String, Long> misses = new HashMap<>();
+        long modificationNumber;
+        synchronized (this) {
+            Map<Long, String> known = names.get(program);
+            if (known == null) {
+                known = new HashMap<>();
+                names.put(program, known);
+                program.addListener(this);
+            }
+            for (String address : addresses) {
+                Long offset = parseOffset(address);
+                String name = offset != null ? known.get(offset) : NO_FUNCTION;
+                if (name == null) {
+                    misses.put(address, offset);
+                } else {
+                    result.put(address, name.isEmpty() ? address : name);
+                }
+            }
+            modificationNumber = program.getModificationNumber();
+        }
+        if (misses.isEmpty()) return result;
+
+        Map<Long, String> resolved = new HashMap<>();
+        AddressSpace space = program.getAddressFactory().getDefaultAddressSpace();
+        FunctionManager functions = program.getFunctionManager();
+        misses.forEach((address, offset) -> {
+            String name = resolved.computeIfAbsent(offset, o -> lookup(space, functions, o));
+            result.put(address, name.isEmpty() ? address : name);
+        });
+
+        synchronized (this) {
+            // Names read while the program was being edited are used once but not kept
+            Map<Long, String> known = names.get(program);
+            if (known != null && program.getModificationNumber() == modificationNumber) {
+                known.putAll(resolved);
+            }
+        }
+        return result;
+    }
+
+    /** Forgets a program the tool has closed and stops listening to it. */
+    public synchronized void programClosed(Program program) {
+        if (names.remove(program) != null) {
+            program.removeListener(this);
+        }
+    }
+
+    @Override
+    public void domainObjectChanged(DomainObjectChangedEvent ev) {
+        if (!(ev.getSource() instanceof Program program)) return;
+        boolean invalidated = false;
+        synchronized (this) {
+            Map<Long, String> known = names.get(program);
+            if (known == null) return;
+            for (DomainObjectChangeRecord record : ev) {
+                EventType type = record.getEventType();
+                if (type == DomainObjectEvent.RESTORED) {
+                    // Undo, redo or revert: any name may have changed
+                    invalidated |= !known.isEmpty();
+                    known.clear();
+                } else if (NAME_EVENTS.contains(type) && record instanceof ProgramChangeRecord pcr
+                           && pcr.getStart() != null) {
+                    long start = pcr.getStart().getOffset();
+                    long end = pcr.getEnd() != null ? pcr.getEnd().getOffset() : start;
+                    invalidated |= known.keySet().removeIf(offset -> offset >= start && offset <= end);
+                }
+            }
+        }
+        if (invalidated && invalidationListener != null) {
+            invalidationListener.functionNamesInvalidated(program);
+        }
+    }
+
+    private static String lookup(AddressSpace space, FunctionManager functions, long offset) {
+        try {
+            Function function = functions.getFunctionAt(space.getAddress(offset));
+            return function != null ? function.getName() : NO_FUNCTION;
+        } catch (RuntimeException e) {
+            // Outside the default address space
+            return NO_FUNCTION;
+        }
+    }
+
+    private static Long parseOffset(String address) {
+        try {
+            return Long.parseUnsignedLong(address.startsWith("0x") || address.startsWith("0X")
+                ? address.substring(2) : address, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
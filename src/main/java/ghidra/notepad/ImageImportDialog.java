@@ -185,8 +185,8 @@ public class ImageImportDialog extends JDialog {
                 currentEditor.replaceSelection(markdownLink);
             }
 
-            // Refresh the tree to show the new image
-            provider.refreshTree();
+            // Show the new image in the tree
+            provider.fileCreated(imagePath);
 
             dispose();
 
@@ -0,0 +1,70 @@
+package ghidra.notepad;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the pixel size of image files so the preview can size images
+ * without decoding them. A miss reads only the image header through an
+ * {@link ImageReader}; entries are keyed by path and revalidated against the
+ * file's modification time and size.
+ */
+public final class ImageMetadataCache {
+    private static final int MAX_ENTRIES = 4096;
+
+    private record Entry(long modified, long size, Dimension dimensions) {}
+
+    // Access-ordered, so the least recently used entry is evicted first
+    private static final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ImageMetadataCache() {}
+
+    /**
+     * Returns the width and height of an image file, or null if no installed
+     * reader recognises it.
+     */
+    public static Dimension getDimensions(Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attrs.lastModifiedTime().toMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(file);
+            if (entry != null && entry.modified() == modified && entry.size() == attrs.size()) {
+                return entry.dimensions() != null ? new Dimension(entry.dimensions()) : null;
+            }
+        }
+        Dimension dimensions = readDimensions(file);
+        synchronized (entries) {
+            entries.put(file, new Entry(modified, attrs.size(), dimensions));
+        }
+        return dimensions != null ? new Dimension(dimensions) : null;
+    }
+
+    private static Dimension readDimensions(Path file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package ghidra.notepad;
 
 import ghidra.MiscellaneousPluginPackage;
+import ghidra.app.events.ProgramActivatedPluginEvent;
+import ghidra.app.events.ProgramClosedPluginEvent;
 import ghidra.app.plugin.PluginCategoryNames;
 import ghidra.framework.plugintool.*;
 import ghidra.framework.plugintool.util.PluginStatus;
@@ -10,7 +12,8 @@ import ghidra.framework.plugintool.util.PluginStatus;
     packageName = MiscellaneousPluginPackage.NAME,
     category = "Notes",
     shortDescription = "Markdown Notepad",
-    description = "Markdown notepad integrated into Ghidra"
+    description = "Markdown notepad integrated into Ghidra",
+    eventsConsumed = { ProgramActivatedPluginEvent.class, ProgramClosedPluginEvent.class }
 )
 public class MarkdownNotepadPlugin extends Plugin {
     private MarkdownNotepadProvider provider;
@@ -20,6 +23,15 @@ public class MarkdownNotepadPlugin extends Plugin {
         provider = new MarkdownNotepadProvider(tool, getName());
     }
 
+    @Override
+    public void processEvent(PluginEvent event) {
+        if (event instanceof ProgramActivatedPluginEvent activated) {
+            provider.programActivated(activated.getActiveProgram());
+        } else if (event instanceof ProgramClosedPluginEvent closed) {
+            provider.programClosed(closed.getProgram());
+        }
+    }
+
     @Override
     public void dispose() {
         provider.cleanup();
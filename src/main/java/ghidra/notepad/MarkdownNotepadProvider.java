@@ -1,10 +1,11 @@
 package ghidra.notepad;
 
-import ghidra.app.decompiler.DecompInterface;
 import ghidra.app.decompiler.DecompileResults;
 import ghidra.app.events.ProgramLocationPluginEvent;
 import ghidra.app.services.ProgramManager;
 import ghidra.framework.options.Options;
+import ghidra.framework.options.OptionsChangeListener;
+import ghidra.framework.options.ToolOptions;
 import ghidra.framework.plugintool.ComponentProviderAdapter;
 import ghidra.framework.plugintool.PluginTool;
 import ghidra.program.model.address.Address;
@@ -16,8 +17,8 @@ import generic.theme.Gui;
 import generic.theme.ThemeListener;
 
 import org.commonmark.ext.gfm.tables.TablesExtension;
+import org.commonmark.parser.IncludeSourceSpans;
 import org.commonmark.parser.Parser;
-import org.commonmark.renderer.html.HtmlRenderer;
 
 import org.fife.ui.rsyntaxtextarea.*;
 import org.fife.ui.rtextarea.RTextScrollPane;
@@ -51,6 +52,12 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         implements DocumentStateHandler, FileStateHandler {
     private static final String LAST_COLLECTION_PREFERENCE = "LastCollectionPath";
     private static final String WINDOW_TITLE = "Markdown Notepad";
+    private static final String DECOMPILER_PARALLELISM_OPTION = "Decompiler Parallelism";
+    private static final String DECOMPILER_IDLE_TIMEOUT_OPTION = "Decompiler Idle Timeout (seconds)";
+    private static final String DECOMPILER_CACHE_SIZE_OPTION = "Decompiler Cache Size (tokens)";
+    private static final String EDITOR_CACHE_SIZE_OPTION = "Open Editor Limit";
+    private static final String IMAGE_CACHE_SIZE_OPTION = "Preview Image Cache Size (pixels)";
+    private static final int DEFAULT_DECOMPILER_IDLE_TIMEOUT = 120;
     
     private JPanel mainPanel;
     private RSyntaxTextArea editor;
@@ -59,17 +66,22 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
     private DefaultTreeModel treeModel;
     private Path currentDirectory;
     private Path currentFile;
-    private Map<Path, DocumentState> documentStates;
+    private long fileLoads; // bumped by every loadFile, so a late tree lookup can tell it is stale
+    private DocumentCache documentStates;
     private DocumentState currentDocument;
     private List<DocumentListener> documentListeners;
 
     private JTabbedPane tabbedPane;
     private CompositePreviewPanel previewPanel;
-    private Parser markdownParser;
-    private HtmlRenderer htmlRenderer;
+    private DocumentParser documentParser;
     private javax.swing.Timer previewUpdateTimer;
     private JSplitPane splitPane;
     private Program currentProgram;
+    private DecompilerPool decompilerPool;
+    private final DecompDiskCache decompDiskCache = new DecompDiskCache();
+    private final FunctionNameCache functionNameCache = new FunctionNameCache();
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final CollectionWatcher collectionWatcher = new CollectionWatcher(new CollectionChangeHandler());
 
     private ActionManager actionManager;
     private FileOperations fileOperations;
@@ -88,13 +100,18 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
     private float currentZoomFactor = 1.0f;
 
     private final ThemeListener themeListener = event -> refreshTheme();
+    private final OptionsChangeListener optionsListener = this::optionsChanged;
 
     public MarkdownNotepadProvider(PluginTool tool, String owner) {
         super(tool, WINDOW_TITLE, owner);
         setIcon(new ImageIcon(getClass().getResource("/images/logo.png")));
-        documentStates = new HashMap<>();
+        registerOptions();
+        documentStates = new DocumentCache();
+        documentStates.setMaxEditors(tool.getOptions("MarkdownNotepad")
+            .getInt(EDITOR_CACHE_SIZE_OPTION, DocumentCache.DEFAULT_MAX_EDITORS));
         documentListeners = new ArrayList<>();
         navigationHistory = new NavigationHistory();
+        decompilerPool = createDecompilerPool();
         initializeComponents();
         
         // Initialize tree operations after components are created
@@ -105,22 +122,98 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
             previewPanel,
             currentDirectory,
             tabbedPane,
-            this::refreshTree,
+            treeOperations,
             this::loadFile,
             this,  // DocumentStateHandler
             this,  // FileStateManager
             treeModel,
-            fileTree
+            fileTree,
+            searchIndex
         );
         actionManager = new ActionManager(this, tool);
         loadLastCollection();
         loadZoomPreference();
         Gui.addThemeListener(themeListener);
+        tool.getOptions("MarkdownNotepad").addOptionsChangeListener(optionsListener);
         setVisible(true);
     }
 
     public void cleanup() {
         Gui.removeThemeListener(themeListener);
+        tool.getOptions("MarkdownNotepad").removeOptionsChangeListener(optionsListener);
+        previewPanel.dispose();
+        documentParser.dispose();
+        decompilerPool.dispose();
+        searchIndex.close();
+        collectionWatcher.stop();
+    }
+
+    /** Releases pooled decompilers for a program the tool has closed. */
+    public void programClosed(Program program) {
+        previewPanel.programClosed(program);
+        decompilerPool.programClosed(program);
+        functionNameCache.programClosed(program);
+    }
+
+    /** Re-decompiles the preview's embeds against the newly current program. */
+    public void programActivated(Program program) {
+        if (program != currentProgram) {
+            currentProgram = program;
+            SwingUtilities.invokeLater(() -> {
+                previewPanel.refreshEmbeds(null);
+                previewPanel.refreshFunctionNames();
+            });
+        }
+    }
+
+    /** Registers the tuning options so they are listed, with descriptions, in the tool's options dialog. */
+    private void registerOptions() {
+        ToolOptions options = tool.getOptions("MarkdownNotepad");
+        options.registerOption(DECOMPILER_PARALLELISM_OPTION, defaultDecompilerParallelism(), null,
+            "Decompiler processes run at once for each program's embeds.");
+        options.registerOption(DECOMPILER_IDLE_TIMEOUT_OPTION, DEFAULT_DECOMPILER_IDLE_TIMEOUT, null,
+            "Seconds a decompiler process is kept running with nothing to decompile before it is stopped.");
+        options.registerOption(DECOMPILER_CACHE_SIZE_OPTION, DecompileCache.DEFAULT_MAX_TOKENS, null,
+            "Decompiled tokens kept in memory for embeds. The least recently shown functions are " +
+            "dropped beyond this and decompiled again when next embedded.");
+        options.registerOption(EDITOR_CACHE_SIZE_OPTION, DocumentCache.DEFAULT_MAX_EDITORS, null,
+            "Notes kept open in memory with their undo history. Older notes without unsaved changes " +
+            "are closed beyond this and reopened from disk at their last position.");
+        options.registerOption(IMAGE_CACHE_SIZE_OPTION, ScaledImageCache.DEFAULT_MAX_PIXELS, null,
+            "Pixels of downscaled preview images kept decoded in memory. The least recently shown " +
+            "images are dropped beyond this and read again from the collection's cache when next shown.");
+    }
+
+    /** Applies a changed option without reopening the notepad. */
+    private void optionsChanged(ToolOptions options, String name, Object oldValue, Object newValue) {
+        switch (name) {
+            case DECOMPILER_PARALLELISM_OPTION -> {
+                int parallelism = ((Number) newValue).intValue();
+                decompilerPool.setParallelism(parallelism);
+                previewPanel.setDecompileParallelism(decompilerPool.getParallelism());
+            }
+            case DECOMPILER_IDLE_TIMEOUT_OPTION ->
+                decompilerPool.setIdleTimeout(((Number) newValue).longValue());
+            case EDITOR_CACHE_SIZE_OPTION ->
+                documentStates.setMaxEditors(((Number) newValue).intValue());
+            case DECOMPILER_CACHE_SIZE_OPTION ->
+                previewPanel.setDecompileCacheLimit(((Number) newValue).longValue());
+            case IMAGE_CACHE_SIZE_OPTION ->
+                previewPanel.setImageCacheLimit(((Number) newValue).longValue());
+            default -> {
+            }
+        }
+    }
+
+    private DecompilerPool createDecompilerPool() {
+        Options options = tool.getOptions("MarkdownNotepad");
+        int parallelism = options.getInt(DECOMPILER_PARALLELISM_OPTION, defaultDecompilerParallelism());
+        int idleTimeout = options.getInt(DECOMPILER_IDLE_TIMEOUT_OPTION, DEFAULT_DECOMPILER_IDLE_TIMEOUT);
+        return new DecompilerPool(parallelism, idleTimeout);
+    }
+
+    private static int defaultDecompilerParallelism() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
     }
 
     public Path getCurrentDirectory() {
@@ -264,13 +357,11 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
     private void initializeComponents() {
         mainPanel = new JPanel(new BorderLayout());
 
-        // Initialize markdown parser and renderer
-        markdownParser = Parser.builder()
-            .extensions(Arrays.asList(TablesExtension.create()))
-            .build();
-        htmlRenderer = HtmlRenderer.builder()
+        // Parse each revision once, with source spans so headings map back to the text
+        documentParser = new DocumentParser(Parser.builder()
             .extensions(Arrays.asList(TablesExtension.create()))
-            .build();
+            .includeSourceSpans(IncludeSourceSpans.BLOCKS)
+            .build());
         
 
         // Initialize editor
@@ -278,51 +369,83 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         EditorUtils.applyEditorStyling(editor);
 
         // Create composite preview panel (handles markdown + embedded decompiler sections)
-        previewPanel = new CompositePreviewPanel(markdownParser, htmlRenderer, mainPanel);
+        previewPanel = new CompositePreviewPanel(mainPanel);
         previewPanel.setAddressNavigationHandler(this::navigateToAddress);
-        previewPanel.setFunctionNameResolver(address -> {
-            ProgramManager programManager = tool.getService(ProgramManager.class);
-            if (programManager == null || programManager.getCurrentProgram() == null) {
-                return address;
+        previewPanel.setDecompileParallelism(decompilerPool.getParallelism());
+        previewPanel.setDecompileCacheLimit(tool.getOptions("MarkdownNotepad")
+            .getLong(DECOMPILER_CACHE_SIZE_OPTION, DecompileCache.DEFAULT_MAX_TOKENS));
+        previewPanel.setImageCacheLimit(tool.getOptions("MarkdownNotepad")
+            .getLong(IMAGE_CACHE_SIZE_OPTION, ScaledImageCache.DEFAULT_MAX_PIXELS));
+        previewPanel.setFunctionNameResolver(new CompositePreviewPanel.FunctionNameResolver() {
+            @Override
+            public String getFunctionName(String address) {
+                return getFunctionNames(List.of(address)).get(address);
             }
-            try {
-                String cleanAddress = address.replaceAll("^0x", "");
-                long offset = Long.parseLong(cleanAddress, 16);
-                Program program = programManager.getCurrentProgram();
-                Address addr = program.getAddressFactory().getDefaultAddressSpace().getAddress(offset);
-                ghidra.program.model.listing.Function function =
-                    program.getFunctionManager().getFunctionAt(addr);
-                return function != null ? function.getName() : address;
-            } catch (Exception e) {
-                return address;
+
+            @Override
+            public Map<String, String> getFunctionNames(Collection<String> addresses) {
+                ProgramManager programManager = tool.getService(ProgramManager.class);
+                Program program = programManager != null ? programManager.getCurrentProgram() : null;
+                if (program == null) {
+                    Map<String, String> names = new HashMap<>();
+                    addresses.forEach(address -> names.put(address, address));
+                    return names;
+                }
+                return functionNameCache.getNames(program, addresses);
             }
         });
-        previewPanel.setDecompilationCallback(address -> {
+        // Renames and new or deleted functions change the names shown in the preview
+        functionNameCache.setInvalidationListener(program -> SwingUtilities.invokeLater(() -> {
             ProgramManager programManager = tool.getService(ProgramManager.class);
-            if (programManager == null || programManager.getCurrentProgram() == null) return null;
-            Program program = programManager.getCurrentProgram();
-            try {
-                String cleanAddress = address.replaceAll("^0x", "");
-                long offset = Long.parseLong(cleanAddress, 16);
-                Address addr = program.getAddressFactory().getDefaultAddressSpace().getAddress(offset);
-                ghidra.program.model.listing.Function function =
-                    program.getFunctionManager().getFunctionAt(addr);
-                if (function == null) return null;
-                DecompInterface decomp = new DecompInterface();
-                decomp.openProgram(program);
-                DecompileResults results = decomp.decompileFunction(function, 30, new ConsoleTaskMonitor());
-                decomp.dispose();
-                if (results == null || !results.decompileCompleted()) return null;
-                String cText = results.getDecompiledFunction() != null
-                    ? results.getDecompiledFunction().getC() : null;
-                return new CompositePreviewPanel.DecompOutput(function, results.getCCodeMarkup(), cText);
-            } catch (Exception e) {
-                return null;
+            if (programManager != null && programManager.getCurrentProgram() == program) {
+                previewPanel.refreshFunctionNames();
+            }
+        }));
+        previewPanel.setDecompilationCallback(new CompositePreviewPanel.DecompilationCallback() {
+            @Override
+            public Program getCurrentProgram() {
+                ProgramManager programManager = tool.getService(ProgramManager.class);
+                return programManager != null ? programManager.getCurrentProgram() : null;
+            }
+
+            @Override
+            public CompositePreviewPanel.DecompOutput decompile(Program program, String address) {
+                try {
+                    String cleanAddress = address.replaceAll("^0x", "");
+                    long offset = Long.parseLong(cleanAddress, 16);
+                    Address addr = program.getAddressFactory().getDefaultAddressSpace().getAddress(offset);
+                    ghidra.program.model.listing.Function function =
+                        program.getFunctionManager().getFunctionAt(addr);
+                    if (function == null) return null;
+                    // Fingerprint the state being decompiled, not whatever it is once the job ends
+                    long modificationNumber = program.getModificationNumber();
+                    Path entry = decompDiskCache.entryFile(function);
+                    DecompSnapshot snapshot = decompDiskCache.load(function, entry);
+                    if (snapshot == null) {
+                        DecompileResults results = decompilerPool.decompileFunction(function, 30, new ConsoleTaskMonitor());
+                        if (results == null || !results.decompileCompleted()) return null;
+                        String cText = results.getDecompiledFunction() != null
+                            ? results.getDecompiledFunction().getC() : null;
+                        snapshot = DecompSnapshot.fromMarkup(function, results.getCCodeMarkup(), cText);
+                        if (program.getModificationNumber() == modificationNumber) {
+                            decompDiskCache.store(function, entry, snapshot);
+                        }
+                    }
+                    return new CompositePreviewPanel.DecompOutput(function, snapshot);
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+
+            @Override
+            public void decompilationsInvalidated(Program program, Set<String> addresses) {
+                decompDiskCache.remove(program, addresses);
             }
         });
 
         // Create preview update timer
-        previewUpdateTimer = new javax.swing.Timer(500, e -> previewPanel.updatePreview(editor.getText()));
+        previewUpdateTimer = new javax.swing.Timer(500,
+            e -> documentParser.parse(editor.getText(), this::showParsedDocument));
         previewUpdateTimer.setRepeats(false);
 
         // Create tabbed pane
@@ -529,17 +652,21 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
                 // Update paths in other components
                 previewPanel.setCurrentDirectory(newPath);
                 treeOperations.setCurrentDirectory(newPath);
+                decompDiskCache.setCollection(newPath);
+                searchIndex.open(newPath);
+                collectionWatcher.watch(newPath);
                 fileOperations = new FileOperations(
                     mainPanel,
                     previewPanel,
                     newPath,
                     tabbedPane,
-                    this::refreshTree,
+                    treeOperations,
                     this::loadFile,
                     this,
                     this,
                     treeModel,
-                    fileTree
+                    fileTree,
+                    searchIndex
                 );
                 
                 // Save new collection path preference
@@ -559,23 +686,11 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
 
     @Override
     public void updateDocumentStates(Path oldPath, Path newPath) {
-        Map<Path, DocumentState> newStates = new HashMap<>();
-        documentStates.forEach((path, state) -> {
-            if (path.startsWith(oldPath)) {
-                Path relativePath = oldPath.relativize(path);
-                Path newPathResolved = newPath.resolve(relativePath);
-                newStates.put(newPathResolved, state);
-                
-                if (currentFile != null && currentFile.equals(path)) {
-                    currentFile = newPathResolved;
-                    previewPanel.setCurrentFile(currentFile);
-                }
-            } else {
-                newStates.put(path, state);
-            }
-        });
-        documentStates.clear();
-        documentStates.putAll(newStates);
+        documentStates.move(oldPath, newPath);
+        if (currentFile != null && currentFile.startsWith(oldPath)) {
+            currentFile = newPath.resolve(oldPath.relativize(currentFile));
+            previewPanel.setCurrentFile(currentFile);
+        }
     }
 
     @Override
@@ -618,45 +733,47 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         tabbedPane.setComponentAt(0, scrollPane);
     }
 
-    private void setupEditorListeners(RSyntaxTextArea editor) {
-        editor.getDocument().addDocumentListener(new DocumentListener() {
-            private void updateState() {
-                if (currentDocument != null && !currentDocument.hasUnsavedChanges()) {
-                    currentDocument.setUnsavedChanges(true);
-                }
-                // Update TOC
-                tableOfContents.scheduleUpdate(editor.getText());
-                // Update preview
-                previewUpdateTimer.restart();
-                // Update undo/redo state
-                SwingUtilities.invokeLater(() -> updateUndoRedoActions());
+    /**
+     * Reacts to edits in the current document. A single instance is attached to
+     * each live document once and detached when it is released.
+     */
+    private final DocumentListener editorChangeListener = new DocumentListener() {
+        private void updateState(DocumentEvent e) {
+            if (currentDocument != null && !currentDocument.hasUnsavedChanges()) {
+                currentDocument.setUnsavedChanges(true);
             }
-            
-            @Override
-            public void insertUpdate(DocumentEvent e) { updateState(); }
-            @Override
-            public void removeUpdate(DocumentEvent e) { updateState(); }
-            @Override
-            public void changedUpdate(DocumentEvent e) { updateState(); }
-        });
-    }
+            // Keep TOC positions in step until the next revision is parsed
+            tableOfContents.documentChanged(e);
+            documentParser.invalidate();
+            // Update preview
+            previewUpdateTimer.restart();
+            // Update undo/redo state
+            SwingUtilities.invokeLater(() -> updateUndoRedoActions());
+        }
+        
+        @Override
+        public void insertUpdate(DocumentEvent e) { updateState(e); }
+        @Override
+        public void removeUpdate(DocumentEvent e) { updateState(e); }
+        @Override
+        public void changedUpdate(DocumentEvent e) { updateState(e); }
+    };
 
     private void loadFile(Path file) {
         // Add to navigation history
         navigationHistory.addLocation(file);
         updateNavigationButtons();
 
-        // Find and select the corresponding tree node
-        DefaultMutableTreeNode treeNode = treeOperations.findNodeForPath(file);
-        if (treeNode != null) {
+        // Find and select the corresponding tree node, once its directories are loaded.
+        // The lookup may answer at once, before currentFile is updated below.
+        long load = ++fileLoads;
+        treeOperations.findNodeForPath(file, treeNode -> {
+            if (load != fileLoads) return;
             TreePath path = new TreePath(treeNode.getPath());
             fileTree.setSelectionPath(path);
             fileTree.scrollPathToVisible(path);
-        }
+        });
 
-        if (currentFile != null && currentDocument != null) {
-            documentStates.put(currentFile, currentDocument);
-        }
         
         currentFile = file;
         previewPanel.setCurrentFile(currentFile);
@@ -665,6 +782,9 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         // Check if this is an image file
         if (fileName.endsWith(".png") || fileName.endsWith(".jpg") || 
             fileName.endsWith(".jpeg")) {
+            // Drop any pending parse of the previous note so it cannot replace the image
+            previewUpdateTimer.stop();
+            documentParser.invalidate();
             fileOperations.loadImagePreview(file, tableOfContents);
             return;
         }
@@ -672,17 +792,22 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         // Re-enable edit tab for non-image files
         tabbedPane.setEnabledAt(0, true);
         
-        // Load existing document state or create new one
-        currentDocument = documentStates.computeIfAbsent(file, k -> {
+        // Load existing document state or create new one, rebuilding a released editor's view
+        currentDocument = documentStates.get(file);
+        DocumentState.ViewState releasedView = null;
+        if (currentDocument == null) {
+            releasedView = documentStates.takeReleasedView(file);
+            DefaultMutableTreeNode treeNode = treeOperations.getLoadedNode(file);
             try {
-                return new DocumentState(Files.readString(k), k, treeModel, treeNode, fileTree,
-                    this::updateUndoRedoActions);
+                currentDocument = new DocumentState(Files.readString(file), file, treeModel, treeNode,
+                    fileTree, this::updateUndoRedoActions);
             } catch (IOException e) {
                 e.printStackTrace();
-                return new DocumentState("", k, treeModel, treeNode, fileTree,
+                currentDocument = new DocumentState("", file, treeModel, treeNode, fileTree,
                     this::updateUndoRedoActions);
             }
-        });
+        }
+        documentStates.open(file, currentDocument);
         
         // Apply styling to the editor
         EditorUtils.applyEditorStyling(currentDocument.getEditor());
@@ -693,17 +818,17 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         tabbedPane.setComponentAt(0, scrollPane);
         editor = currentDocument.getEditor();
         
-        // Setup editor listeners
-        setupEditorListeners(editor);
+        // Wire the editor to the preview, TOC and undo state (once per document)
+        currentDocument.attach(editorChangeListener);
         
         // Apply current zoom level to new editor
         currentDocument.applyZoom(currentZoomFactor);
+        if (releasedView != null) {
+            currentDocument.restoreViewState(releasedView);
+        }
         
-        // Update preview
-        previewPanel.updatePreview(editor.getText());
-
-        // Update table of contents with initial content
-        tableOfContents.updateToc(editor.getText(), position -> {
+        // Bind the TOC, then parse once for both it and the preview
+        tableOfContents.setDocument(editor.getDocument(), position -> {
             if (tabbedPane.getSelectedIndex() == 0) {
                 editor.setCaretPosition(position);
                 editor.requestFocusInWindow();
@@ -711,11 +836,18 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
                 previewPanel.scrollToMarkdownPosition(position);
             }
         });
+        documentParser.parse(editor.getText(), this::showParsedDocument);
         
         // Update initial undo/redo states
         updateUndoRedoActions();
     }
 
+    /** Hands a parsed revision of the current note to every view that shows it. */
+    private void showParsedDocument(ParsedDocument document) {
+        previewPanel.updatePreview(document);
+        tableOfContents.setParsedDocument(document);
+    }
+
     public void loadDirectory(Path directory) {
         clearEditorAndPreview();
         navigationHistory.reset();
@@ -724,6 +856,9 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         currentDirectory = directory;
         treeOperations.setCurrentDirectory(directory);
         previewPanel.setCurrentDirectory(currentDirectory);
+        decompDiskCache.setCollection(directory);
+        searchIndex.open(directory);
+        collectionWatcher.watch(directory);
         treeOperations.refreshTree();
         saveCollectionPreference(directory);
     }
@@ -755,7 +890,7 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         editor.discardAllEdits();
         
         // Clear the preview
-        previewPanel.updatePreview("");
+        documentParser.parse("", this::showParsedDocument);
         
         // Clear current file references
         currentFile = null;
@@ -765,10 +900,66 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         documentStates.clear();
     }
 
+    /** Shows live editors with their listener counts, and decompile cache usage. */
+    public void showDiagnostics() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Open editors: %d%n", documentStates.size()));
+        documentStates.entries().forEach((path, state) -> {
+            Path name = currentDirectory != null && path.startsWith(currentDirectory)
+                ? currentDirectory.relativize(path) : path;
+            text.append(String.format("  %s: %d document listeners%s%n", name,
+                state.getDocumentListenerCount(), state.isAttached() ? "" : " (not wired)"));
+        });
+        text.append(String.format("%nDecompile cache: %s%n", previewPanel.getDecompileCacheStats()));
+
+        JTextArea area = new JTextArea(text.toString(), 16, 60);
+        area.setEditable(false);
+        JOptionPane.showMessageDialog(mainPanel, new JScrollPane(area),
+            "Markdown Notepad Diagnostics", JOptionPane.INFORMATION_MESSAGE);
+    }
+
     protected void refreshTree() {
         treeOperations.refreshTree();
     }
 
+    /** Shows a file the notepad has just written, without waiting for the watcher. */
+    protected void fileCreated(Path file) {
+        treeOperations.addPath(file);
+    }
+
+    /**
+     * Applies changes made on disk to the tree and search index. Changes the
+     * notepad made itself have usually been applied already and are no-ops.
+     */
+    private class CollectionChangeHandler implements CollectionWatcher.ChangeListener {
+        @Override
+        public void pathCreated(Path path) {
+            treeOperations.addPath(path);
+            searchIndex.update(path);
+        }
+
+        @Override
+        public void pathDeleted(Path path) {
+            treeOperations.removePath(path);
+            FileTreeCellRenderer.invalidateThumbnails(path);
+            if (!Files.exists(path)) searchIndex.remove(path);
+        }
+
+        @Override
+        public void pathModified(Path path) {
+            if (Files.isRegularFile(path)) searchIndex.update(path);
+            if (FileTreeCellRenderer.invalidateThumbnails(path)) fileTree.repaint();
+        }
+
+        @Override
+        public void changesLost() {
+            if (currentDirectory == null) return;
+            FileTreeCellRenderer.clearThumbnails();
+            treeOperations.refreshTree();
+            searchIndex.open(currentDirectory);
+        }
+    }
+
     public void performUndo() {
         if (currentDocument != null && currentDocument.getEditor().canUndo()) {
             currentDocument.getEditor().undoLastAction();
@@ -976,32 +1167,8 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
         }
 
         private Path getTargetPath(DefaultMutableTreeNode targetNode) {
-            // For root node, return the current collection directory
-            if (targetNode == rootNode) {
-                return currentDirectory;
-            }
-            
-            // Build the full path by walking up the tree
-            List<String> pathParts = new ArrayList<>();
-            DefaultMutableTreeNode current = targetNode;
-            
-            // Walk up the tree until we hit the root
-            while (current != rootNode) {
-                Object userObject = current.getUserObject();
-                if (userObject instanceof String) {
-                    pathParts.add(0, (String) userObject);
-                } else if (userObject instanceof FileNode) {
-                    pathParts.add(0, ((FileNode) userObject).getPath().getFileName().toString());
-                }
-                current = (DefaultMutableTreeNode) current.getParent();
-            }
-            
-            // Construct the full path
-            Path result = currentDirectory;
-            for (String part : pathParts) {
-                result = result.resolve(part);
-            }
-            return result;
+            // The collection root maps to the collection directory itself
+            return treeOperations.getNodePath(targetNode);
         }
 
         @Override
@@ -1037,12 +1204,7 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
                     }
 
                     // Get target directory
-                    Path targetDirPath;
-                    if (targetNode == rootNode) {
-                        targetDirPath = currentDirectory;
-                    } else {
-                        targetDirPath = treeOperations.getNodePath(targetNode);
-                    }
+                    Path targetDirPath = getTargetPath(targetNode);
                     
                     Path targetPath = targetDirPath.resolve(sourcePath.getFileName());
                     
@@ -1053,6 +1215,8 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
                     
                     // Move the file or directory
                     Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                    searchIndex.move(sourcePath, targetPath);
+                    treeOperations.movePath(sourcePath, targetPath);
                     
                     // Update document states if needed
                     updateDocumentStates(sourcePath, targetPath);
@@ -1066,9 +1230,6 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
                 }
             }
             
-            // Refresh the tree after all moves are complete
-            refreshTree();
-            
             return true;
         }
 
@@ -1218,7 +1379,7 @@ public class MarkdownNotepadProvider extends ComponentProviderAdapter
             }
         };
         
-        SearchUtils.showSearchDialog(mainPanel, currentDirectory, callback, clearHighlights);
+        SearchUtils.showSearchDialog(mainPanel, currentDirectory, searchIndex, callback, clearHighlights);
     }
 
     @Override
@@ -0,0 +1,353 @@
+package ghidra.notepad;
+
+import org.commonmark.node.*;
+import org.commonmark.parser.Parser;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One revision of a note, parsed once off the EDT and shared by the preview, the
+ * table of contents and scroll sync.
+ *
+ * <p>The text is split into the blocks the preview shows: every embed is a block
+ * of its own, and the markdown between embeds is split before each heading that
+ * starts a top-level block. Each markdown block is parsed into a commonmark tree with
+ * source spans; a block whose text is unchanged since the previous revision keeps
+ * that revision's tree. Link reference definitions apply to the whole note, so a
+ * block is parsed together with the definitions of the labels it uses, wherever
+ * they are. Headings and address references are read from the trees, so nothing
+ * inside code is mistaken for either.
+ *
+ * <p>Instances are immutable once built, and the trees are only read after that.
+ */
+public final class ParsedDocument {
+
+    // Matches {addr}[], {addr}[N], or {addr}[N-M]  — single braces, brackets required
+    private static final Pattern EMBED_PATTERN = Pattern.compile(
+        "\\{(0x[0-9a-fA-F]+|[0-9a-fA-F]+)\\}\\[(\\d*)(?:-(\\d+))?\\]");
+
+    // An ATX heading line; four columns of indentation make it code instead
+    static final Pattern HEADING_LINE = Pattern.compile(" {0,3}#{1,6}([ \t]|$)");
+
+    // A heading in the first column, which no list item or block quote can contain
+    private static final Pattern SECTION_HEADING = Pattern.compile("#{1,6}([ \t]|$)");
+
+    // A line that starts an HTML block ending at a marker: group 1 is a raw-text tag,
+    // the other alternatives a comment, processing instruction, declaration or CDATA
+    private static final Pattern HTML_MARKER_START = Pattern.compile(
+        " {0,3}<(?:(?i)(script|pre|style|textarea)(?:[ \t>]|$)|(!--)|(\\?)|(![A-Za-z])|(!\\[CDATA\\[))");
+
+    // A line that starts any other HTML block, which runs to the next blank line
+    private static final Pattern HTML_START = Pattern.compile(" {0,3}</?[A-Za-z]");
+
+    // A code fence line: group 1 is the fence, group 2 the info string or trailing text
+    private static final Pattern FENCE_LINE = Pattern.compile(" {0,3}(`{3,}|~{3,})(.*)");
+
+    // A link reference definition on one line; group 1 is the label
+    private static final Pattern LINK_DEFINITION = Pattern.compile(" {0,3}\\[((?:[^\\]\\\\]|\\\\.)+)\\]:[ \t]*\\S.*");
+
+    // Anything that may be a link label used by a reference link
+    private static final Pattern LINK_LABEL = Pattern.compile("\\[((?:[^\\]\\\\]|\\\\.)+)\\]");
+
+    /** A decompiler embed; null lines mean the whole function, and a single line has start == end. */
+    public record Embed(String address, Integer startLine, Integer endLine) {}
+
+    /**
+     * Identity of one block: either a run of markdown, with the link reference
+     * definitions from elsewhere in the note that it uses, or a single embed.
+     * Blocks are compared by content, so an unchanged block is equal across
+     * revisions; {@code occurrence} tells apart identical blocks in one document.
+     */
+    public record BlockKey(String markdown, String definitions, Embed embed, int occurrence) {}
+
+    /** A block of this revision: where it starts in the text and, for markdown, its tree. */
+    public record Block(BlockKey key, int offset, Node ast) {}
+
+    /** A heading, with its plain text and the offset of its first line. */
+    public record Heading(int level, String text, int offset) {}
+
+    /** An address in text: {@code {addr}} shows a function name, {@code [addr]} the address. */
+    public record Reference(String address, boolean function) {}
+
+    private final String text;
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Heading> headings = new ArrayList<>();
+    private final List<Reference> references = new ArrayList<>();
+
+    private ParsedDocument(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a revision of a note. Trees of blocks that also appear in
+     * {@code previous} are reused; the parser should include source spans so
+     * headings get exact offsets.
+     */
+    public static ParsedDocument parse(Parser parser, String text, ParsedDocument previous) {
+        Map<BlockKey, Node> trees = new HashMap<>();
+        if (previous != null) {
+            for (Block block : previous.blocks) {
+                if (block.ast() != null) trees.put(block.key(), block.ast());
+            }
+        }
+        ParsedDocument document = new ParsedDocument(text);
+        document.split(parser, trees);
+        return document;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    public List<Heading> getHeadings() {
+        return Collections.unmodifiableList(headings);
+    }
+
+    public List<Reference> getReferences() {
+        return Collections.unmodifiableList(references);
+    }
+
+    /** Returns the block that the given offset falls in, or null if it is before the first one. */
+    public Block blockAt(int offset) {
+        Block found = null;
+        for (Block block : blocks) {
+            if (block.offset() > offset) break;
+            found = block;
+        }
+        return found;
+    }
+
+    private void split(Parser parser, Map<BlockKey, Node> trees) {
+        Map<String, String> definitions = linkDefinitions();
+        Map<BlockKey, Integer> occurrences = new HashMap<>();
+        Matcher m = EMBED_PATTERN.matcher(text);
+        int lastEnd = 0;
+        while (m.find()) {
+            addMarkdown(parser, trees, definitions, occurrences, lastEnd, m.start());
+            // group(2) is the start number (empty string = entire function)
+            // group(3) is the end number (absent = same as start, i.e. single line)
+            String g2 = m.group(2);
+            String g3 = m.group(3);
+            Integer startLine = (g2 != null && !g2.isEmpty()) ? Integer.valueOf(g2) : null;
+            Integer endLine   = (g3 != null) ? Integer.valueOf(g3) : startLine;
+            Embed embed = new Embed(m.group(1), startLine, endLine);
+            blocks.add(new Block(nextOccurrence(occurrences, null, null, embed), m.start(), null));
+            lastEnd = m.end();
+        }
+        addMarkdown(parser, trees, definitions, occurrences, lastEnd, text.length());
+    }
+
+    /**
+     * Tracks whether lines are inside a fenced code block. A fence is closed only
+     * by one of the same character that is at least as long, with nothing after it.
+     */
+    private static final class FenceTracker {
+        private char fenceChar;
+        private int fenceLength;
+
+        boolean inFence() {
+            return fenceLength > 0;
+        }
+
+        /** Returns true if the line opens or closes a fence, updating the state. */
+        boolean fenceLine(String line) {
+            Matcher m = FENCE_LINE.matcher(line);
+            if (!m.matches()) return false;
+            String fence = m.group(1);
+            String rest = m.group(2);
+            if (!inFence()) {
+                // A backtick fence's info string may not contain backticks
+                if (fence.charAt(0) == '`' && rest.indexOf('`') >= 0) return false;
+                fenceChar = fence.charAt(0);
+                fenceLength = fence.length();
+                return true;
+            }
+            if (fence.charAt(0) != fenceChar || fence.length() < fenceLength || !rest.isBlank()) return false;
+            fenceLength = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Finds the note's link reference definitions outside fenced code, keyed by
+     * normalized label; as in commonmark, the first definition of a label wins.
+     * Only single-line definitions that start a block are recognized.
+     */
+    private Map<String, String> linkDefinitions() {
+        Map<String, String> definitions = new HashMap<>();
+        FenceTracker fences = new FenceTracker();
+        boolean paragraph = false;
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) lineEnd = text.length();
+            String line = text.substring(lineStart, lineEnd);
+            if (fences.fenceLine(line) || fences.inFence()) {
+                paragraph = false;
+            } else {
+                Matcher m = LINK_DEFINITION.matcher(line);
+                // A definition cannot interrupt a paragraph
+                if (!paragraph && m.matches()) {
+                    definitions.putIfAbsent(normalizeLabel(m.group(1)), line.strip());
+                } else {
+                    paragraph = !line.isBlank() && !HEADING_LINE.matcher(line).lookingAt();
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return definitions;
+    }
+
+    private static String normalizeLabel(String label) {
+        return label.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Adds the markdown between two embeds, split before every heading that starts
+     * a top-level block, so each part parses as it would within the whole note.
+     * Only headings in the first column qualify, as an indented one may belong to
+     * a list item; none inside fenced code or an HTML block does, nor one with a
+     * pipe straight after a table row, which continues the table.
+     */
+    private void addMarkdown(Parser parser, Map<BlockKey, Node> trees, Map<String, String> definitions,
+                             Map<BlockKey, Integer> occurrences, int start, int end) {
+        FenceTracker fences = new FenceTracker();
+        String htmlEnd = null;  // what closes the open HTML block; "" for a blank line
+        String previous = "";
+        int sectionStart = start;
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > end) lineEnd = end;
+            String line = text.substring(lineStart, lineEnd);
+            if (htmlEnd != null) {
+                if (htmlEnd.isEmpty() ? line.isBlank() : line.toLowerCase(Locale.ROOT).contains(htmlEnd)) {
+                    htmlEnd = null;
+                }
+            } else if (!fences.fenceLine(line) && !fences.inFence()) {
+                if (lineStart > sectionStart && SECTION_HEADING.matcher(line).lookingAt()
+                        && !(line.indexOf('|') >= 0 && previous.indexOf('|') >= 0)) {
+                    addSection(parser, trees, definitions, occurrences, sectionStart, lineStart, false);
+                    sectionStart = lineStart;
+                } else {
+                    htmlEnd = htmlBlockEnd(line);
+                }
+            }
+            previous = line;
+            lineStart = lineEnd + 1;
+        }
+        addSection(parser, trees, definitions, occurrences, sectionStart, end, fences.inFence());
+    }
+
+    /**
+     * Returns what ends the HTML block a line starts, or null if it starts none.
+     * The block may also end on the line that starts it.
+     */
+    private static String htmlBlockEnd(String line) {
+        Matcher m = HTML_MARKER_START.matcher(line);
+        if (m.lookingAt()) {
+            String end;
+            if (m.group(1) != null) end = "</" + m.group(1).toLowerCase(Locale.ROOT) + ">";
+            else if (m.group(2) != null) end = "-->";
+            else if (m.group(3) != null) end = "?>";
+            else if (m.group(4) != null) end = ">";
+            else end = "]]>";
+            return line.substring(m.end()).toLowerCase(Locale.ROOT).contains(end) ? null : end;
+        }
+        if (HTML_START.matcher(line).lookingAt()) return "";
+        return null;
+    }
+
+    private void addSection(Parser parser, Map<BlockKey, Node> trees, Map<String, String> definitions,
+                            Map<BlockKey, Integer> occurrences, int start, int end, boolean endsInFence) {
+        String markdown = text.substring(start, end);
+        if (markdown.isBlank()) return;
+        // Appended after the section, where they change no offsets; inside an open fence they would show as code
+        String used = endsInFence ? "" : usedDefinitions(markdown, definitions);
+        BlockKey key = nextOccurrence(occurrences, markdown, used, null);
+        Node ast = trees.get(key);
+        if (ast == null) ast = parser.parse(used.isEmpty() ? markdown : markdown + "\n\n" + used);
+        blocks.add(new Block(key, start, ast));
+        collect(ast, markdown, start);
+    }
+
+    /** The definitions of the labels a section mentions, one per line. */
+    private static String usedDefinitions(String markdown, Map<String, String> definitions) {
+        if (definitions.isEmpty()) return "";
+        Set<String> used = new LinkedHashSet<>();
+        Matcher m = LINK_LABEL.matcher(markdown);
+        while (m.find()) {
+            String definition = definitions.get(normalizeLabel(m.group(1)));
+            if (definition != null) used.add(definition);
+        }
+        return String.join("\n", used);
+    }
+
+    private static BlockKey nextOccurrence(Map<BlockKey, Integer> occurrences, String markdown,
+                                           String definitions, Embed embed) {
+        int n = occurrences.merge(new BlockKey(markdown, definitions, embed, 0), 1, Integer::sum) - 1;
+        return new BlockKey(markdown, definitions, embed, n);
+    }
+
+    /** Records the headings and address references of one block's tree. */
+    private void collect(Node ast, String markdown, int offset) {
+        ast.accept(new AbstractVisitor() {
+            private int[] lineStarts;
+            private int linkDepth;
+
+            @Override
+            public void visit(org.commonmark.node.Heading heading) {
+                headings.add(new Heading(heading.getLevel(), PreviewMarkdown.plainText(heading),
+                    offset + startOf(heading)));
+                visitChildren(heading);
+            }
+
+            @Override
+            public void visit(Text text) {
+                if (linkDepth > 0) return;
+                Matcher m = PreviewMarkdown.ADDRESS_REF.matcher(text.getLiteral());
+                while (m.find()) {
+                    references.add(m.group(1) != null
+                        ? new Reference(m.group(1), true) : new Reference(m.group(2), false));
+                }
+            }
+
+            @Override
+            public void visit(Link link) {
+                // Text that is already a link is shown as written
+                linkDepth++;
+                visitChildren(link);
+                linkDepth--;
+            }
+
+            @Override
+            public void visit(Image image) {
+                // Children are alt text
+            }
+
+            private int startOf(Node node) {
+                List<SourceSpan> spans = node.getSourceSpans();
+                if (spans == null || spans.isEmpty()) return 0;
+                if (lineStarts == null) lineStarts = lineStarts(markdown);
+                SourceSpan span = spans.get(0);
+                int line = Math.min(span.getLineIndex(), lineStarts.length - 1);
+                return lineStarts[line] + span.getColumnIndex();
+            }
+        });
+    }
+
+    private static int[] lineStarts(String text) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            starts.add(i + 1);
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
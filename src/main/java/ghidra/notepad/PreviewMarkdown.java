@@ -0,0 +1,180 @@
+package ghidra.notepad;
+
+import org.commonmark.ext.gfm.tables.TablesExtension;
+import org.commonmark.node.*;
+import org.commonmark.renderer.NodeRenderer;
+import org.commonmark.renderer.html.HtmlNodeRendererContext;
+import org.commonmark.renderer.html.HtmlRenderer;
+import org.commonmark.renderer.html.HtmlWriter;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The preview's rendering of a note's commonmark trees. Text nodes turn
+ * {@code {addr}} and {@code [addr]} into {@code address://} links, local images
+ * are drawn from their resolved location at display size, and every heading gets
+ * a named anchor, all while the tree is rendered.
+ *
+ * <p>Working on the tree rather than the HTML means code spans and code blocks,
+ * which hold no text nodes, are never rewritten. The tree itself is left as it
+ * is, since it belongs to a {@link ParsedDocument} that other views share.
+ */
+public final class PreviewMarkdown {
+
+    /** An {@code {addr}} reference, shown with the name of the function at the address. */
+    static final Pattern FUNCTION_REF = Pattern.compile("\\{(0x[0-9a-fA-F]+|[0-9a-fA-F]+)\\}");
+
+    /** Either kind of address reference: group 1 is an {@code {addr}}, group 2 an {@code [addr]}. */
+    static final Pattern ADDRESS_REF =
+        Pattern.compile("\\{(0x[0-9a-fA-F]+|[0-9a-fA-F]+)\\}|\\[(0x[0-9a-fA-F]+|[0-9a-fA-F]+)\\]");
+
+    private PreviewMarkdown() {}
+
+    /** Where an image is loaded from and the size to draw it at; sizes of 0 mean natural size. */
+    public record ResolvedImage(String source, int width, int height) {}
+
+    public interface ImageResolver {
+        /** Returns how to show the image at a markdown destination, or null to leave it as written. */
+        ResolvedImage resolve(String destination);
+    }
+
+    /** Anchor name for a heading, as used by {@code JEditorPane.scrollToReference}. */
+    static String toAnchorId(String text) {
+        return text.toLowerCase()
+            .replaceAll("[^a-z0-9\\s-]", "")
+            .trim()
+            .replaceAll("\\s+", "-");
+    }
+
+    /**
+     * Returns a renderer for one render of the preview, using that render's
+     * function names and image locations. Building one is cheap; the work is in
+     * the render itself.
+     */
+    public static HtmlRenderer renderer(Map<String, String> functionNames, ImageResolver imageResolver) {
+        return HtmlRenderer.builder()
+            .extensions(List.of(TablesExtension.create()))
+            .nodeRendererFactory(context -> new PreviewNodeRenderer(context, functionNames, imageResolver))
+            .build();
+    }
+
+    private static final class PreviewNodeRenderer implements NodeRenderer {
+        private final HtmlNodeRendererContext context;
+        private final HtmlWriter html;
+        private final Map<String, String> functionNames;
+        private final ImageResolver imageResolver;
+
+        PreviewNodeRenderer(HtmlNodeRendererContext context, Map<String, String> functionNames,
+                            ImageResolver imageResolver) {
+            this.context = context;
+            this.html = context.getWriter();
+            this.functionNames = functionNames;
+            this.imageResolver = imageResolver;
+        }
+
+        @Override
+        public Set<Class<? extends Node>> getNodeTypes() {
+            return Set.of(Heading.class, Image.class, Text.class);
+        }
+
+        @Override
+        public void render(Node node) {
+            if (node instanceof Heading heading) {
+                renderHeading(heading);
+            } else if (node instanceof Image image) {
+                renderImage(image);
+            } else if (node instanceof Text text) {
+                renderText(text);
+            }
+        }
+
+        private void renderHeading(Heading heading) {
+            String tag = "h" + heading.getLevel();
+            html.line();
+            html.tag(tag, context.extendAttributes(heading, tag, Map.of()));
+            // scrollToReference looks for <a name="...">, not id attributes
+            html.tag("a", Map.of("name", toAnchorId(plainText(heading))));
+            html.tag("/a");
+            renderChildren(heading);
+            html.tag("/" + tag);
+            html.line();
+        }
+
+        private void renderImage(Image image) {
+            ResolvedImage resolved = imageResolver != null ? imageResolver.resolve(image.getDestination()) : null;
+            Map<String, String> attrs = new LinkedHashMap<>();
+            attrs.put("src", context.encodeUrl(resolved != null ? resolved.source() : image.getDestination()));
+            attrs.put("alt", plainText(image));
+            if (image.getTitle() != null) attrs.put("title", image.getTitle());
+            if (resolved == null) {
+                html.tag("img", context.extendAttributes(image, "img", attrs), true);
+                return;
+            }
+            if (resolved.width() > 0 && resolved.height() > 0) {
+                attrs.put("width", Integer.toString(resolved.width()));
+                attrs.put("height", Integer.toString(resolved.height()));
+            }
+            html.tag("div", Map.of("style", "text-align:center"));
+            html.tag("img", context.extendAttributes(image, "img", attrs), true);
+            html.tag("/div");
+        }
+
+        private void renderText(Text text) {
+            String literal = text.getLiteral();
+            // A link inside a link would not render, so existing link text stays as it is
+            if (insideLink(text)) {
+                html.text(literal);
+                return;
+            }
+            Matcher m = ADDRESS_REF.matcher(literal);
+            int last = 0;
+            while (m.find()) {
+                html.text(literal.substring(last, m.start()));
+                String address = m.group(1) != null ? m.group(1) : m.group(2);
+                String display = m.group(1) != null ? functionNames.get(address) : address;
+                Map<String, String> attrs = new LinkedHashMap<>();
+                attrs.put("href", context.encodeUrl("address://" + address));
+                html.tag("a", context.extendAttributes(text, "a", attrs));
+                html.text(display != null ? display : address);
+                html.tag("/a");
+                last = m.end();
+            }
+            html.text(literal.substring(last));
+        }
+
+        private static boolean insideLink(Node node) {
+            for (Node parent = node.getParent(); parent != null; parent = parent.getParent()) {
+                if (parent instanceof Link) return true;
+            }
+            return false;
+        }
+
+        private void renderChildren(Node parent) {
+            Node child = parent.getFirstChild();
+            while (child != null) {
+                Node next = child.getNext();
+                context.render(child);
+                child = next;
+            }
+        }
+    }
+
+    /** The text of a node and its descendants, without markup. */
+    static String plainText(Node node) {
+        StringBuilder sb = new StringBuilder();
+        node.accept(new AbstractVisitor() {
+            @Override
+            public void visit(Text text) {
+                sb.append(text.getLiteral());
+            }
+
+            @Override
+            public void visit(Code code) {
+                sb.append(code.getLiteral());
+            }
+        });
+        return sb.toString();
+    }
+}
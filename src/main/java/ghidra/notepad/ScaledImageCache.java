@@ -0,0 +1,308 @@
+package ghidra.notepad;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import ghidra.util.Msg;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Downscaled copies of the images a note shows, so preview panes load an image
+ * of the size they draw instead of a full-resolution screenshot.
+ *
+ * <p>Variants are written once to {@code .notepad/thumbs/} in the collection,
+ * named by a hash of the source path, a hash of its modification time and size,
+ * and the target dimensions, and reused across renders and sessions. Writing a
+ * variant for a changed image deletes the variants of its earlier versions, and
+ * variants unused for a month, or beyond a total size, are pruned when the
+ * collection is opened. Recently used variants are also held in memory, up to a
+ * total pixel count, and handed to preview documents through their
+ * {@code imageCache} property so every pane showing an image shares one decoded copy.
+ * A variant's file is touched when it is first decoded in a session, not on every
+ * render; the in-memory copies are dropped when another collection is opened.
+ */
+public class ScaledImageCache {
+    private static final String DIRECTORY_NAME = "thumbs";
+    private static final String EXTENSION = ".png";
+    private static final Duration MAX_UNUSED_AGE = Duration.ofDays(30);
+    private static final long MAX_DISK_BYTES = 256L * 1024 * 1024;
+
+    /** Default bound on the pixels of decoded variants held in memory (about 128 MB). */
+    public static final long DEFAULT_MAX_PIXELS = 32_000_000;
+
+    // Access-ordered, so iteration starts at the least recently used variant
+    private final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private final Dictionary<URL, Image> imageDictionary = new ImageDictionary();
+    private volatile Path root;
+    private long maxPixels = DEFAULT_MAX_PIXELS;
+    private long totalPixels;
+
+    /** Points the cache at a collection; null disables variants. */
+    public void setCollection(Path collection) {
+        Path dir = collection != null
+            ? collection.resolve(FileOperations.CACHE_DIRECTORY_NAME).resolve(DIRECTORY_NAME)
+            : null;
+        if (!Objects.equals(dir, root)) {
+            // Variants of the previous collection will not be shown again
+            clear();
+        }
+        root = dir;
+        if (dir != null) {
+            Thread pruner = new Thread(() -> prune(dir), "Markdown Notepad Thumbnail Cleanup");
+            pruner.setDaemon(true);
+            pruner.start();
+        }
+    }
+
+    /** Zoom factors are rounded up to quarter steps so small zoom changes reuse a variant. */
+    public static float zoomBucket(float zoomFactor) {
+        return (float) Math.ceil(zoomFactor * 4) / 4;
+    }
+
+    /**
+     * Returns the URI of a copy of an image scaled to the given size, creating
+     * it if needed, or null if the original should be used as it is — because
+     * it is no larger, or no variant can be written.
+     */
+    public URI variant(Path source, int width, int height) {
+        Path dir = root;
+        if (dir == null || width <= 0 || height <= 0) return null;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+            String sourceName = hash(source.toAbsolutePath().toString());
+            String version = hash(attrs.lastModifiedTime().toMillis() + "\0" + attrs.size());
+            Path file = dir.resolve(sourceName + "-" + version + "-" + width + "x" + height + EXTENSION);
+            URI uri = file.toUri();
+            String key = uri.toURL().toString();
+            if (lookup(key) != null) return uri;
+            if (Files.isRegularFile(file)) {
+                // Written in an earlier session: decode it here, once, rather than in every pane
+                BufferedImage stored = ImageIO.read(file.toFile());
+                if (stored != null) {
+                    // The modification time records last use, which pruning goes by
+                    Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+                    remember(key, stored);
+                    return uri;
+                }
+            }
+
+            BufferedImage scaled = readScaled(source, width, height);
+            if (scaled == null) return null;
+            Files.createDirectories(dir);
+            // Write beside the variant and move into place so readers never see a partial file
+            Path temp = Files.createTempFile(dir, "thumb", ".tmp");
+            ImageIO.write(scaled, "png", temp.toFile());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deleteOtherVersions(dir, sourceName, version);
+            remember(key, scaled);
+            return uri;
+        } catch (IOException e) {
+            Msg.error(this, "Could not write scaled copy of " + source, e);
+            return null;
+        }
+    }
+
+    /** Deletes the variants of earlier versions of a source image. */
+    private static void deleteOtherVersions(Path dir, String sourceName, String version) throws IOException {
+        String prefix = sourceName + "-";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + EXTENSION)) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().startsWith(prefix + version + "-")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes variants not used for {@link #MAX_UNUSED_AGE}, then the least
+     * recently used ones until the directory is within {@link #MAX_DISK_BYTES}.
+     */
+    private void prune(Path dir) {
+        if (!Files.isDirectory(dir)) return;
+        record Variant(Path file, long used, long size) {}
+        List<Variant> variants = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attrs.isRegularFile()) {
+                        variants.add(new Variant(file, attrs.lastModifiedTime().toMillis(), attrs.size()));
+                    }
+                } catch (IOException e) {
+                    // Deleted by a concurrent render; nothing to prune
+                }
+            });
+        } catch (IOException e) {
+            Msg.error(this, "Could not list " + dir, e);
+            return;
+        }
+        variants.sort(Comparator.comparingLong(Variant::used));
+        long cutoff = Instant.now().minus(MAX_UNUSED_AGE).toEpochMilli();
+        long total = variants.stream().mapToLong(Variant::size).sum();
+        for (Variant variant : variants) {
+            if (variant.used() >= cutoff && total <= MAX_DISK_BYTES) break;
+            try {
+                Files.deleteIfExists(variant.file());
+                total -= variant.size();
+            } catch (IOException e) {
+                Msg.error(this, "Could not delete " + variant.file(), e);
+            }
+        }
+    }
+
+    /** A view of the in-memory variants for {@code HTMLDocument.putProperty("imageCache", ...)}. */
+    public Dictionary<URL, Image> getImageDictionary() {
+        return imageDictionary;
+    }
+
+    /** Limits the total pixels of decoded variants held in memory. */
+    public synchronized void setMaxPixels(long maxPixels) {
+        this.maxPixels = Math.max(1, maxPixels);
+        evictToLimit();
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        totalPixels = 0;
+    }
+
+    private synchronized void remember(String key, BufferedImage image) {
+        BufferedImage previous = images.put(key, image);
+        if (previous != null) totalPixels -= pixels(previous);
+        totalPixels += pixels(image);
+        evictToLimit();
+    }
+
+    private synchronized BufferedImage lookup(String key) {
+        return images.get(key);
+    }
+
+    private void evictToLimit() {
+        Iterator<BufferedImage> it = images.values().iterator();
+        while (totalPixels > maxPixels && it.hasNext()) {
+            totalPixels -= pixels(it.next());
+            it.remove();
+        }
+    }
+
+    private static long pixels(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Decodes an image at roughly the target size by skipping source pixels,
+     * then resamples it to exactly that size. Returns null if the image is no
+     * larger than the target or cannot be read.
+     */
+    static BufferedImage readScaled(Path source, int width, int height) throws IOException {
+        BufferedImage decoded;
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                if (width >= sourceWidth && height >= sourceHeight) return null;
+                ImageReadParam param = reader.getDefaultReadParam();
+                // Keep at least twice the target resolution so the final resample stays smooth
+                int step = Math.max(1, Math.min(sourceWidth / (width * 2), sourceHeight / (height * 2)));
+                param.setSourceSubsampling(step, step, 0, 0);
+                decoded = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(decoded, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private static String hash(String identity) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(identity.hashCode());
+        }
+    }
+
+    /**
+     * The only source ImageView loads from once a document has an image cache:
+     * it never fetches a URL itself. Variants are returned from memory, where
+     * {@link #variant} puts them, including ones written in an earlier session;
+     * every other URL, such as natural-size and remote images, becomes a Toolkit
+     * image, which decodes on Toolkit's own threads rather than on the EDT during layout.
+     */
+    private final class ImageDictionary extends Dictionary<URL, Image> {
+        @Override
+        public Image get(Object key) {
+            if (!(key instanceof URL url)) return null;
+            BufferedImage image = lookup(url.toString());
+            if (image != null) return image;
+            return Toolkit.getDefaultToolkit().createImage(url);
+        }
+
+        @Override
+        public Image put(URL key, Image value) {
+            // Swing only reads this cache; variants are added by the owner
+            return null;
+        }
+
+        @Override
+        public Image remove(Object key) {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            synchronized (ScaledImageCache.this) {
+                return images.size();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public Enumeration<URL> keys() {
+            return Collections.emptyEnumeration();
+        }
+
+        @Override
+        public Enumeration<Image> elements() {
+            return Collections.emptyEnumeration();
+        }
+    }
+}
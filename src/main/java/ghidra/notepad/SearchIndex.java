@@ -0,0 +1,319 @@
+package ghidra.notepad;
+
+import ghidra.util.Msg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory full-text index over the markdown files of a collection.
+ *
+ * <p>Each file's lower-cased text is broken into trigrams, and a posting set per
+ * trigram lists the files containing it. A query of three or more characters
+ * only verifies the files holding all of its trigrams, against text already in
+ * memory; shorter queries scan the cached text without touching the disk.
+ *
+ * <p>Building and all updates run in order on one background thread, so a save
+ * made while the index is still being built is applied after it. The indexed
+ * text is kept in {@code .notepad/search-index.bin} and reused on the next
+ * open for files whose size and modification time are unchanged.
+ */
+public class SearchIndex {
+    private static final String SNAPSHOT_FILE = "search-index.bin";
+    private static final int SNAPSHOT_MAGIC = 0x4E505349; // "NPSI"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private record IndexedFile(String content, long modified, long size, long[] trigrams) {}
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Markdown Notepad Search Index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this; written only from the worker thread
+    private final Map<Path, IndexedFile> files = new HashMap<>();
+    private final Map<Long, Set<Path>> postings = new HashMap<>();
+    private Path root;
+    private boolean ready;
+    private boolean dirty;
+
+    /** Indexes a collection in the background, replacing whatever was indexed before. */
+    public void open(Path collection) {
+        synchronized (this) {
+            root = collection;
+            ready = false;
+        }
+        worker.execute(() -> build(collection));
+    }
+
+    /** Saves the index for the next session and stops the background thread. */
+    public void close() {
+        worker.execute(this::saveSnapshot);
+        worker.shutdown();
+    }
+
+    /** True once the given collection has been fully indexed. */
+    public synchronized boolean isReady(Path collection) {
+        return ready && collection != null && collection.equals(root);
+    }
+
+    /** Re-indexes a file from its saved content. */
+    public void update(Path file, String content) {
+        if (!isMarkdown(file)) return;
+        worker.execute(() -> {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                put(file, content, attrs);
+            } catch (IOException e) {
+                Msg.error(this, "Could not index " + file, e);
+            }
+        });
+    }
+
+    /** Re-indexes a file, reading it from disk. */
+    public void update(Path file) {
+        if (!isMarkdown(file)) return;
+        worker.execute(() -> {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                put(file, Files.readString(file), attrs);
+            } catch (IOException e) {
+                Msg.error(this, "Could not index " + file, e);
+            }
+        });
+    }
+
+    /** Drops a deleted file, or every file under a deleted directory. */
+    public void remove(Path path) {
+        worker.execute(() -> {
+            synchronized (this) {
+                for (Path file : filesUnder(path)) {
+                    removeFile(file);
+                }
+            }
+        });
+    }
+
+    /** Re-keys a renamed or moved file, or every file under a moved directory. */
+    public void move(Path from, Path to) {
+        worker.execute(() -> {
+            synchronized (this) {
+                for (Path file : filesUnder(from)) {
+                    IndexedFile indexed = removeFile(file);
+                    Path target = to.resolve(from.relativize(file));
+                    if (indexed != null && isMarkdown(target)) addFile(target, indexed);
+                }
+            }
+        });
+    }
+
+    /**
+     * The text of every file that may contain a term, ordered by path. Matches
+     * still have to be verified, which callers can do without holding the index.
+     */
+    public synchronized SortedMap<Path, String> candidates(String term) {
+        SortedMap<Path, String> result = new TreeMap<>();
+        for (Path file : candidateFiles(term)) {
+            result.put(file, files.get(file).content());
+        }
+        return result;
+    }
+
+    /** Files that may contain the term: all of them for short terms, else the trigram intersection. */
+    private Collection<Path> candidateFiles(String term) {
+        long[] wanted = trigrams(term.toLowerCase());
+        if (wanted.length == 0) return files.keySet();
+
+        List<Set<Path>> sets = new ArrayList<>(wanted.length);
+        for (long trigram : wanted) {
+            Set<Path> set = postings.get(trigram);
+            if (set == null) return List.of();
+            sets.add(set);
+        }
+        sets.sort(Comparator.comparingInt(Set::size));
+        Set<Path> result = new HashSet<>(sets.get(0));
+        for (int i = 1; i < sets.size() && !result.isEmpty(); i++) {
+            result.retainAll(sets.get(i));
+        }
+        return result;
+    }
+
+    // ----- Indexing, on the worker thread -----
+
+    private void build(Path collection) {
+        Map<Path, IndexedFile> previous = loadSnapshot(collection);
+        Map<Path, IndexedFile> indexed = new HashMap<>();
+        boolean changed = false;
+        try (Stream<Path> paths = Files.walk(collection)) {
+            for (Path file : (Iterable<Path>) paths::iterator) {
+                if (!isMarkdown(file) || FileOperations.isCachePath(collection, file)) continue;
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    long modified = attrs.lastModifiedTime().toMillis();
+                    IndexedFile cached = previous.get(file);
+                    if (cached != null && cached.modified() == modified && cached.size() == attrs.size()) {
+                        indexed.put(file, cached);
+                    } else {
+                        String content = Files.readString(file);
+                        indexed.put(file, new IndexedFile(content, modified, attrs.size(),
+                            trigrams(content.toLowerCase())));
+                        changed = true;
+                    }
+                } catch (IOException e) {
+                    // Unreadable, not UTF-8, or deleted since the walk listed it: skip just this file
+                    Msg.error(this, "Could not index " + file, e);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // An incomplete index would hide notes from searches, which scan the files until it is ready
+            Msg.error(this, "Could not index " + collection, e);
+            return;
+        }
+        changed |= indexed.size() != previous.size();
+
+        synchronized (this) {
+            if (!collection.equals(root)) return;  // another collection was opened meanwhile
+            files.clear();
+            postings.clear();
+            indexed.forEach(this::addFile);
+            ready = true;
+            dirty = changed;
+        }
+        saveSnapshot();
+    }
+
+    private void put(Path file, String content, BasicFileAttributes attrs) {
+        synchronized (this) {
+            if (root == null || !file.startsWith(root)) return;
+            removeFile(file);
+            addFile(file, new IndexedFile(content, attrs.lastModifiedTime().toMillis(), attrs.size(),
+                trigrams(content.toLowerCase())));
+        }
+    }
+
+    private void addFile(Path file, IndexedFile indexed) {
+        files.put(file, indexed);
+        for (long trigram : indexed.trigrams()) {
+            postings.computeIfAbsent(trigram, k -> new HashSet<>()).add(file);
+        }
+        dirty = true;
+    }
+
+    private IndexedFile removeFile(Path file) {
+        IndexedFile indexed = files.remove(file);
+        if (indexed == null) return null;
+        for (long trigram : indexed.trigrams()) {
+            Set<Path> set = postings.get(trigram);
+            if (set != null && set.remove(file) && set.isEmpty()) {
+                postings.remove(trigram);
+            }
+        }
+        dirty = true;
+        return indexed;
+    }
+
+    private List<Path> filesUnder(Path path) {
+        List<Path> matches = new ArrayList<>();
+        for (Path file : files.keySet()) {
+            if (file.startsWith(path)) matches.add(file);
+        }
+        return matches;
+    }
+
+    /** The distinct trigrams of a lower-cased string, each packed into a long. */
+    private static long[] trigrams(String text) {
+        if (text.length() < 3) return new long[0];
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            seen.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+        long[] result = new long[seen.size()];
+        int i = 0;
+        for (long trigram : seen) result[i++] = trigram;
+        return result;
+    }
+
+    private static boolean isMarkdown(Path file) {
+        return file.toString().toLowerCase().endsWith(".md");
+    }
+
+    // ----- Persistence -----
+
+    private static Path snapshotFile(Path collection) {
+        return collection.resolve(FileOperations.CACHE_DIRECTORY_NAME).resolve(SNAPSHOT_FILE);
+    }
+
+    private void saveSnapshot() {
+        Path collection;
+        Map<Path, IndexedFile> copy;
+        synchronized (this) {
+            if (!ready || !dirty || root == null) return;
+            collection = root;
+            copy = new HashMap<>(files);
+            dirty = false;
+        }
+        Path target = snapshotFile(collection);
+        try {
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(target.getParent(), "search-index", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(SNAPSHOT_MAGIC);
+                data.writeInt(SNAPSHOT_VERSION);
+                data.writeInt(copy.size());
+                for (Map.Entry<Path, IndexedFile> e : copy.entrySet()) {
+                    data.writeUTF(collection.relativize(e.getKey()).toString());
+                    data.writeLong(e.getValue().modified());
+                    data.writeLong(e.getValue().size());
+                    byte[] bytes = e.getValue().content().getBytes(StandardCharsets.UTF_8);
+                    data.writeInt(bytes.length);
+                    data.write(bytes);
+                }
+                data.flush();
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Msg.error(this, "Could not save search index to " + target, e);
+        }
+    }
+
+    private static Map<Path, IndexedFile> loadSnapshot(Path collection) {
+        Map<Path, IndexedFile> loaded = new HashMap<>();
+        Path source = snapshotFile(collection);
+        if (!Files.isRegularFile(source)) return loaded;
+        try (InputStream in = Files.newInputStream(source)) {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+            if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != SNAPSHOT_VERSION) {
+                return loaded;
+            }
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                Path file = collection.resolve(data.readUTF());
+                long modified = data.readLong();
+                long size = data.readLong();
+                byte[] bytes = new byte[data.readInt()];
+                data.readFully(bytes);
+                String content = new String(bytes, StandardCharsets.UTF_8);
+                loaded.put(file, new IndexedFile(content, modified, size, trigrams(content.toLowerCase())));
+            }
+        } catch (IOException e) {
+            // A truncated or foreign snapshot only costs a full re-read
+            loaded.clear();
+        }
+        return loaded;
+    }
+}
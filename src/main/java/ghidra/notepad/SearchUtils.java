@@ -1,5 +1,7 @@
 package ghidra.notepad;
 
+import ghidra.util.Msg;
+
 import javax.swing.*;
 import javax.swing.table.*;
 import javax.swing.text.*;
@@ -7,11 +9,17 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyAdapter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import generic.theme.Gui;
 
 
@@ -21,6 +29,15 @@ import generic.theme.Gui;
  * and the collection search dialog interface.
  */
 public class SearchUtils {
+    // Fork-join workers are daemon threads, so an idle pool never holds up shutdown
+    private static final ForkJoinPool SEARCH_POOL =
+        new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    // Results are listed by file, then by position, however the parallel scan finds them
+    static final Comparator<SearchResult> RESULT_ORDER =
+        Comparator.comparing((SearchResult result) -> result.filePath)
+            .thenComparingInt(result -> result.position);
+
     public interface SearchResultCallback {
         void navigateToResult(Path file, int position, String searchTerm);
     }
@@ -57,35 +74,117 @@ public class SearchUtils {
         return positions;
     }
     
-    public static List<SearchResult> searchCollection(Path rootDirectory, String searchTerm, 
-            boolean caseSensitive) throws IOException {
-        List<SearchResult> results = new ArrayList<>();
-        
-        Files.walk(rootDirectory)
-            .filter(path -> path.toString().toLowerCase().endsWith(".md"))
-            .forEach(file -> {
-                try {
-                    String content = Files.readString(file);
-                    List<Integer> positions = findAllPositions(content, searchTerm, caseSensitive);
-                    
-                    for (int pos : positions) {
-                        // Extract snippet with context (50 chars before and after)
-                        int start = Math.max(0, pos - 50);
-                        int end = Math.min(content.length(), pos + searchTerm.length() + 50);
-                        String snippet = content.substring(start, end);
-                        
-                        // Add ellipsis if we're not at the start/end
-                        if (start > 0) snippet = "..." + snippet;
-                        if (end < content.length()) snippet = snippet + "...";
-                        
-                        results.add(new SearchResult(file, snippet, pos, searchTerm));
+    /**
+     * A collection search running in the background. Results found since the
+     * last delivery are handed to the EDT together, sorted in {@link #RESULT_ORDER},
+     * so a fast scan arrives in a few large batches while the first hit still
+     * shows up immediately.
+     */
+    public static final class SearchTask {
+        private final String searchTerm;
+        private final boolean caseSensitive;
+        private final Consumer<List<SearchResult>> onResults;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final Queue<SearchResult> pending = new ConcurrentLinkedQueue<>();
+
+        private SearchTask(String searchTerm, boolean caseSensitive,
+                Consumer<List<SearchResult>> onResults) {
+            this.searchTerm = searchTerm;
+            this.caseSensitive = caseSensitive;
+            this.onResults = onResults;
+        }
+
+        /** Stops the scan; no further results or completion are delivered. */
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public boolean matches(String term, boolean caseSensitive) {
+            return searchTerm.equals(term) && this.caseSensitive == caseSensitive;
+        }
+
+        private void scan(Path file, String content) {
+            if (isCancelled()) return;
+            List<Integer> positions = findAllPositions(content, searchTerm, caseSensitive);
+            if (positions.isEmpty()) return;
+            for (int pos : positions) {
+                pending.add(createResult(file, content, pos, searchTerm));
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this::flush);
+            }
+        }
+
+        private void flush() {
+            flushScheduled.set(false);
+            List<SearchResult> batch = new ArrayList<>();
+            SearchResult result;
+            while ((result = pending.poll()) != null) {
+                batch.add(result);
+            }
+            batch.sort(RESULT_ORDER);
+            if (!batch.isEmpty() && !isCancelled()) {
+                onResults.accept(batch);
+            }
+        }
+    }
+
+    /**
+     * Searches the collection on a fork-join pool, reading and matching files in
+     * parallel. Uses the index once it has been built for this collection, and
+     * otherwise reads the notes from disk. Both callbacks run on the EDT.
+     */
+    public static SearchTask searchCollectionAsync(SearchIndex index, Path rootDirectory,
+            String searchTerm, boolean caseSensitive,
+            Consumer<List<SearchResult>> onResults, Runnable onComplete) {
+        SearchTask task = new SearchTask(searchTerm, caseSensitive, onResults);
+        SEARCH_POOL.execute(() -> {
+            try {
+                if (index != null && index.isReady(rootDirectory)) {
+                    index.candidates(searchTerm).entrySet().parallelStream()
+                        .forEach(e -> task.scan(e.getKey(), e.getValue()));
+                } else {
+                    try (Stream<Path> paths = Files.walk(rootDirectory)) {
+                        paths.filter(path -> path.toString().toLowerCase().endsWith(".md"))
+                            .filter(path -> !FileOperations.isCachePath(rootDirectory, path))
+                            .parallel()
+                            .forEach(file -> {
+                                if (task.isCancelled()) return;
+                                try {
+                                    task.scan(file, Files.readString(file));
+                                } catch (IOException e) {
+                                    Msg.error(SearchUtils.class, "Could not search " + file, e);
+                                }
+                            });
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
+            } catch (IOException | UncheckedIOException e) {
+                Msg.error(SearchUtils.class, "Could not search " + rootDirectory, e);
+            }
+            SwingUtilities.invokeLater(() -> {
+                task.flush();
+                if (!task.isCancelled()) onComplete.run();
             });
-            
-        return results;
+        });
+        return task;
+    }
+
+    static SearchResult createResult(Path file, String content, int pos, String searchTerm) {
+        // Extract snippet with context (50 chars before and after)
+        int start = Math.max(0, pos - 50);
+        int end = Math.min(content.length(), pos + searchTerm.length() + 50);
+        String snippet = content.substring(start, end);
+        
+        // Add ellipsis if we're not at the start/end
+        if (start > 0) snippet = "..." + snippet;
+        if (end < content.length()) snippet = snippet + "...";
+        
+        return new SearchResult(file, snippet, pos, searchTerm);
     }
     
     public static void highlightText(JTextComponent textComponent, String searchTerm,
@@ -114,7 +213,7 @@ public class SearchUtils {
     }
     
     private static class SearchResultsTable extends JTable {
-        private final String searchTerm;
+        private String searchTerm;
         private final SearchResultCallback callback;
         
         public SearchResultsTable(SearchResultTableModel model, String searchTerm, 
@@ -125,6 +224,10 @@ public class SearchUtils {
             setupTable();
         }
         
+        public void setSearchTerm(String searchTerm) {
+            this.searchTerm = searchTerm;
+        }
+
         private void setupTable() {
             setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
             setShowGrid(false);
@@ -247,6 +350,21 @@ public class SearchUtils {
         public SearchResult getResultAt(int row) {
             return results.get(row);
         }
+
+        /** Inserts results where they belong in {@link #RESULT_ORDER}, so the list ends up the same every time. */
+        public void addResults(List<SearchResult> batch) {
+            for (SearchResult result : batch) {
+                int index = Collections.binarySearch(results, result, RESULT_ORDER);
+                if (index < 0) index = -index - 1;
+                results.add(index, result);
+                fireTableRowsInserted(index, index);
+            }
+        }
+
+        public void clear() {
+            results.clear();
+            fireTableDataChanged();
+        }
     }
     
     private static String formatSnippet(String snippet, String searchTerm) {
@@ -258,7 +376,7 @@ public class SearchUtils {
             "<span style='background-color: #FFEB3B; font-weight: bold;'>$0</span>") + "</html>";
     }
     
-    public static void showSearchDialog(Component parent, Path rootDirectory, 
+    public static void showSearchDialog(Component parent, Path rootDirectory, SearchIndex index,
             SearchResultCallback callback, Runnable clearHighlights) {
         JDialog dialog = new JDialog(SwingUtilities.getWindowAncestor(parent), "Search Collection");
         dialog.setLayout(new BorderLayout());
@@ -306,27 +424,74 @@ public class SearchUtils {
             }
         });
         
-        searchField.addActionListener(e -> {
-            String searchTerm = searchField.getText();
-            if (!searchTerm.isEmpty()) {
-                try {
-                    List<SearchResult> results = searchCollection(rootDirectory, searchTerm, 
-                        caseSensitiveBox.isSelected());
-                    dialog.setTitle(String.format("Search Collection - %d results", results.size()));
-                    SearchResultTableModel newModel = new SearchResultTableModel(results);
-                    resultsTable.setModel(newModel);
-                    resultsTable.setupTable();
+        // Search as you type: each change replaces the running search after a short pause
+        SearchTask[] currentSearch = new SearchTask[1];
+        boolean[] selectFirstResult = new boolean[1];
 
-                    // Automatically select first result
-                    if (!results.isEmpty()) {
-                        SwingUtilities.invokeLater(() -> {
-                            resultsTable.setSelectedRow(0);
-                            resultsTable.requestFocusInWindow();
-                        });
+        Runnable startSearch = () -> {
+            if (currentSearch[0] != null) currentSearch[0].cancel();
+            currentSearch[0] = null;
+            String searchTerm = searchField.getText();
+            model.clear();
+            resultsTable.setSearchTerm(searchTerm);
+            if (searchTerm.isEmpty()) {
+                dialog.setTitle("Search Collection");
+                return;
+            }
+            dialog.setTitle("Search Collection - searching...");
+            currentSearch[0] = searchCollectionAsync(index, rootDirectory, searchTerm,
+                caseSensitiveBox.isSelected(),
+                batch -> {
+                    model.addResults(batch);
+                    dialog.setTitle(String.format("Search Collection - %d results so far",
+                        model.getRowCount()));
+                    if (selectFirstResult[0]) {
+                        selectFirstResult[0] = false;
+                        resultsTable.setSelectedRow(0);
+                        resultsTable.requestFocusInWindow();
                     }
-                } catch (IOException ex) {
-                    ex.printStackTrace();
+                },
+                () -> dialog.setTitle(String.format("Search Collection - %d results",
+                    model.getRowCount())));
+        };
+
+        javax.swing.Timer searchDelay = new javax.swing.Timer(150, e -> {
+            selectFirstResult[0] = false;
+            startSearch.run();
+        });
+        searchDelay.setRepeats(false);
+
+        searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override public void insertUpdate(javax.swing.event.DocumentEvent e) { searchDelay.restart(); }
+            @Override public void removeUpdate(javax.swing.event.DocumentEvent e) { searchDelay.restart(); }
+            @Override public void changedUpdate(javax.swing.event.DocumentEvent e) { searchDelay.restart(); }
+        });
+        caseSensitiveBox.addActionListener(e -> searchDelay.restart());
+
+        // Enter jumps to the first result, once there is one
+        searchField.addActionListener(e -> {
+            String searchTerm = searchField.getText();
+            if (searchTerm.isEmpty()) return;
+            searchDelay.stop();
+            SearchTask running = currentSearch[0];
+            if (running != null && running.matches(searchTerm, caseSensitiveBox.isSelected())) {
+                if (model.getRowCount() > 0) {
+                    resultsTable.setSelectedRow(0);
+                    resultsTable.requestFocusInWindow();
+                } else {
+                    selectFirstResult[0] = true;
                 }
+            } else {
+                selectFirstResult[0] = true;
+                startSearch.run();
+            }
+        });
+
+        dialog.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                searchDelay.stop();
+                if (currentSearch[0] != null) currentSearch[0].cancel();
             }
         });
         
@@ -2,13 +2,34 @@ package ghidra.notepad;
 
 import generic.theme.Gui;
 import javax.swing.*;
-import javax.swing.Timer; // disambiguate from java.util.Timer
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 import javax.swing.tree.*;
 import java.awt.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Outline of the headings in the current note.
+ *
+ * <p>Headings come from each {@link ParsedDocument} revision of the bound
+ * document, in position order. The tree is brought in line with them node by
+ * node, so unchanged headings keep their nodes and their expanded or collapsed
+ * state. Between revisions, each edit shifts the positions after it and re-scans
+ * only the lines it touched, so headings that are typed, renamed or deleted show
+ * up right away; the next revision then corrects anything the line scan cannot
+ * tell, such as a heading-like line inside a code block.
+ */
 public class TableOfContents extends JPanel {
+    // A heading is a single line: up to 3 spaces, 1-6 hashes, the text, and optional closing hashes
+    private static final Pattern HEADER_PATTERN =
+        Pattern.compile("^ {0,3}(#{1,6})[ \\t]+(.+?)[ \\t]*#*$", Pattern.MULTILINE);
+
     private final JTree tocTree;
     private final DefaultMutableTreeNode rootNode;
     private final DefaultTreeModel treeModel;
@@ -16,7 +37,13 @@ public class TableOfContents extends JPanel {
     private final JScrollPane scrollPane;
     private final DefaultTreeCellRenderer renderer;
     private TocCallback callback;
-    private String currentContent;
+
+    // Headings in document order; the tree's nodes share these entries
+    private final List<TocEntry> headings = new ArrayList<>();
+    // The document the outline is for, or null if none
+    private Document indexedDocument;
+    // Set when the next revision starts a new outline rather than updating this one
+    private boolean reloadPending;
     
     public interface TocCallback {
         void jumpToPosition(int position);
@@ -58,9 +85,7 @@ public class TableOfContents extends JPanel {
         treeModel = new DefaultTreeModel(rootNode);
         tocTree = new JTree(treeModel);
         tocTree.setRootVisible(false);
-        
-        // Create a debounced timer for updates
-        updateTimer = new Timer(300, e -> performUpdate());
+        updateTimer = new Timer(300, e -> reconcile(rootNode, buildOutline()));
         updateTimer.setRepeats(false);
         
         scrollPane = new JScrollPane(tocTree);
@@ -119,107 +144,201 @@ public class TableOfContents extends JPanel {
         repaint();
     }
 
-    public void scheduleUpdate(String content) {
-        currentContent = content;
-        updateTimer.restart();
+    /** Empties the outline and unbinds it from any document. */
+    public void clear() {
+        setDocument(null, null);
+        reloadPending = false;
     }
-    
-    private void performUpdate() {
-        updateToc(currentContent, callback);
-    }
-    
-    public void updateToc(String content, TocCallback callback) {
+
+    /**
+     * Binds the outline to a document. It stays empty until the first parsed
+     * revision of the document arrives through {@link #setParsedDocument}.
+     */
+    public void setDocument(Document document, TocCallback callback) {
         this.callback = callback;
-        
-        if (content == null || content.isEmpty()) {
-            if (rootNode.getChildCount() > 0) {
-                rootNode.removeAllChildren();
-                treeModel.reload();
-            }
+        indexedDocument = document;
+        reloadPending = true;
+        updateTimer.stop();
+        headings.clear();
+        if (rootNode.getChildCount() > 0) {
+            rootNode.removeAllChildren();
+            treeModel.reload();
+        }
+    }
+
+    /** Shows the headings of a new revision of the bound document. */
+    public void setParsedDocument(ParsedDocument parsed) {
+        if (indexedDocument == null) return;
+        updateTimer.stop();
+        headings.clear();
+        for (ParsedDocument.Heading heading : parsed.getHeadings()) {
+            headings.add(new TocEntry(heading.text(), heading.level(), heading.offset()));
+        }
+        if (!reloadPending) {
+            reconcile(rootNode, buildOutline());
             return;
         }
-        
-        // Get current expanded paths
-        Set<String> expandedPaths = new HashSet<>();
-        Enumeration<TreePath> expanded = tocTree.getExpandedDescendants(new TreePath(rootNode));
-        if (expanded != null) {
-            while (expanded.hasMoreElements()) {
-                TreePath path = expanded.nextElement();
-                expandedPaths.add(getPathString(path));
+
+        reloadPending = false;
+        DefaultMutableTreeNode outline = buildOutline();
+        rootNode.removeAllChildren();
+        while (outline.getChildCount() > 0) {
+            rootNode.add((MutableTreeNode) outline.getFirstChild());
+        }
+        treeModel.reload();
+
+        // Expand all nodes by default
+        for (int i = 0; i < tocTree.getRowCount(); i++) {
+            tocTree.expandRow(i);
+        }
+    }
+
+    /**
+     * Updates the headings for an insertion or removal in the bound document until
+     * the next parsed revision replaces them, re-scanning only the lines the edit
+     * touched. The tree follows after a short delay.
+     */
+    public void documentChanged(DocumentEvent e) {
+        Document document = e.getDocument();
+        if (document != indexedDocument || e.getType() == DocumentEvent.EventType.CHANGE) return;
+        // Nothing to update before the first revision arrives
+        if (reloadPending) return;
+        boolean insert = e.getType() == DocumentEvent.EventType.INSERT;
+        int offset = e.getOffset();
+        int length = e.getLength();
+
+        // Lines of the new text that overlap the edit
+        Element lines = document.getDefaultRootElement();
+        int start = lines.getElement(lines.getElementIndex(offset)).getStartOffset();
+        int changedEnd = insert ? offset + length : offset;
+        int end = Math.min(lines.getElement(lines.getElementIndex(changedEnd)).getEndOffset(),
+            document.getLength());
+
+        // Headings that started on those lines are replaced; later ones only move
+        int oldEnd = insert ? offset : offset + length;
+        int from = firstHeadingFrom(start);
+        int to = Math.max(from, firstHeadingFrom(oldEnd + 1));
+        headings.subList(from, to).clear();
+        int delta = insert ? length : -length;
+        for (int i = from; i < headings.size(); i++) {
+            headings.get(i).position += delta;
+        }
+        try {
+            headings.addAll(from, scan(document.getText(start, end - start), start));
+        } catch (BadLocationException ex) {
+            // Offsets came from the document itself; the next revision puts the outline right
+            return;
+        }
+        updateTimer.restart();
+    }
+
+    private static List<TocEntry> scan(String text, int base) {
+        List<TocEntry> found = new ArrayList<>();
+        Matcher matcher = HEADER_PATTERN.matcher(text);
+        while (matcher.find()) {
+            int level = matcher.group(1).length();
+            found.add(new TocEntry(matcher.group(2).trim(), level, base + matcher.start()));
+        }
+        return found;
+    }
+
+    /** Finds the index of the first heading at or after a position. */
+    private int firstHeadingFrom(int position) {
+        int low = 0;
+        int high = headings.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (headings.get(mid).position < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
         }
-        
-        // Match any level of headers
-        Pattern headerPattern = Pattern.compile("^(#{1,6})\\s+(.+?)\\s*#*$", Pattern.MULTILINE);
-        Matcher matcher = headerPattern.matcher(content);
-        
-        // Build new tree structure
+        return low;
+    }
+
+    /** Nests the indexed headings by level into a detached tree. */
+    private DefaultMutableTreeNode buildOutline() {
+        DefaultMutableTreeNode outline = new DefaultMutableTreeNode();
         DefaultMutableTreeNode[] lastNodes = new DefaultMutableTreeNode[7];
-        lastNodes[0] = rootNode;
-        rootNode.removeAllChildren();
-        
-        while (matcher.find()) {
-            String hashes = matcher.group(1);
-            String headerText = matcher.group(2).trim();
-            int level = hashes.length();
-            int position = matcher.start();
-            
-            TocEntry entry = new TocEntry(headerText, level, position);
+        lastNodes[0] = outline;
+
+        for (TocEntry entry : headings) {
+            int level = entry.level;
             DefaultMutableTreeNode node = new DefaultMutableTreeNode(entry);
-            
+
             // Find appropriate parent
-            DefaultMutableTreeNode parent = null;
+            DefaultMutableTreeNode parent = outline;
             for (int i = level - 1; i >= 0; i--) {
                 if (lastNodes[i] != null) {
                     parent = lastNodes[i];
                     break;
                 }
             }
-            if (parent == null) parent = rootNode;
-            
+
             parent.add(node);
             lastNodes[level] = node;
             for (int i = level + 1; i < lastNodes.length; i++) {
                 lastNodes[i] = null;
             }
         }
-        
-        treeModel.reload();
+        return outline;
+    }
 
-        // Expand all nodes by default
-        for (int i = 0; i < tocTree.getRowCount(); i++) {
-            tocTree.expandRow(i);
+    /**
+     * Matches a node's children against the wanted ones in order. Equal headings
+     * keep their node; a heading that is neither kept nor found later on the other
+     * side is edited in place, which is what typing in a heading looks like.
+     */
+    private void reconcile(DefaultMutableTreeNode current, DefaultMutableTreeNode wanted) {
+        for (int i = 0; i < wanted.getChildCount(); i++) {
+            DefaultMutableTreeNode target = (DefaultMutableTreeNode) wanted.getChildAt(i);
+            TocEntry entry = (TocEntry) target.getUserObject();
+            DefaultMutableTreeNode existing = i < current.getChildCount()
+                ? (DefaultMutableTreeNode) current.getChildAt(i) : null;
+
+            if (existing == null) {
+                existing = insertNode(current, entry, i);
+            } else if (entry.equals(existing.getUserObject())) {
+                existing.setUserObject(entry);
+            } else if (indexOfEntry(current, entry, i + 1) >= 0) {
+                // Headings before the match were deleted
+                treeModel.removeNodeFromParent(existing);
+                i--;
+                continue;
+            } else if (indexOfEntry(wanted, (TocEntry) existing.getUserObject(), i + 1) >= 0) {
+                existing = insertNode(current, entry, i);
+            } else {
+                existing.setUserObject(entry);
+                treeModel.nodeChanged(existing);
+            }
+            reconcile(existing, target);
+        }
+        while (current.getChildCount() > wanted.getChildCount()) {
+            treeModel.removeNodeFromParent((MutableTreeNode) current.getLastChild());
         }
-        
-        // Restore expanded paths
-        restoreExpandedPaths(rootNode, "", expandedPaths);
     }
-    
-    private String getPathString(TreePath path) {
-        StringBuilder sb = new StringBuilder();
-        Object[] pathElements = path.getPath();
-        for (int i = 1; i < pathElements.length; i++) { // Skip root
-            DefaultMutableTreeNode node = (DefaultMutableTreeNode) pathElements[i];
-            if (node.getUserObject() instanceof TocEntry) {
-                TocEntry entry = (TocEntry) node.getUserObject();
-                sb.append("/").append(entry.level).append("-").append(entry.text);
+
+    private DefaultMutableTreeNode insertNode(DefaultMutableTreeNode parent, TocEntry entry, int index) {
+        DefaultMutableTreeNode node = new DefaultMutableTreeNode(entry);
+        treeModel.insertNodeInto(node, parent, index);
+        // A heading that just gained its first subheading opens, like a fresh outline;
+        // one the user collapsed already has children and stays as it is
+        if (parent != rootNode && parent.getChildCount() == 1) {
+            TreePath path = new TreePath(parent.getPath());
+            if (tocTree.isVisible(path)) {
+                tocTree.expandPath(path);
             }
         }
-        return sb.toString();
+        return node;
     }
-    
-    private void restoreExpandedPaths(DefaultMutableTreeNode node, String currentPath, Set<String> expandedPaths) {
-        if (!currentPath.isEmpty() && expandedPaths.contains(currentPath)) {
-            tocTree.expandPath(new TreePath(node.getPath()));
-        }
-        
-        for (int i = 0; i < node.getChildCount(); i++) {
-            DefaultMutableTreeNode child = (DefaultMutableTreeNode) node.getChildAt(i);
-            if (child.getUserObject() instanceof TocEntry) {
-                TocEntry entry = (TocEntry) child.getUserObject();
-                String childPath = currentPath + "/" + entry.level + "-" + entry.text;
-                restoreExpandedPaths(child, childPath, expandedPaths);
+
+    private static int indexOfEntry(DefaultMutableTreeNode parent, TocEntry entry, int from) {
+        for (int i = from; i < parent.getChildCount(); i++) {
+            if (entry.equals(((DefaultMutableTreeNode) parent.getChildAt(i)).getUserObject())) {
+                return i;
             }
         }
+        return -1;
     }
-}
\ No newline at end of file
+}
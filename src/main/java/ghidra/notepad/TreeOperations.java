@@ -1,18 +1,41 @@
 package ghidra.notepad;
 
+import ghidra.util.Msg;
+
 import javax.swing.*;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
 import javax.swing.tree.*;
 import java.nio.file.*;
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Manages the file tree structure and operations, including adding,
  * finding, and updating nodes. Handles path resolution and maintains
  * the expanded state of directories during tree updates.
+ *
+ * <p>Directories are read lazily: a refresh lists only the collection root on a
+ * background thread and swaps the result into the model in one step on the
+ * EDT, and each directory lists its own entries, also in the background, the
+ * first time it is expanded or a path inside it is looked up, showing a
+ * placeholder until they arrive. Until then, how many entries it has is
+ * counted in the background so empty directories show no expand handle.
+ * Every loaded node's path is indexed both ways, so finding the node for a
+ * file, or the file for a node, does not search the tree. Entries are kept in
+ * order, directories first and then by name, as they are added.
  */
 public class TreeOperations {
     private final DefaultMutableTreeNode rootNode;
@@ -20,78 +43,126 @@ public class TreeOperations {
     private final JTree fileTree;
     private Path currentDirectory;
 
-    public TreeOperations(DefaultMutableTreeNode rootNode, DefaultTreeModel treeModel, 
-                         JTree fileTree) {
-        this.rootNode = rootNode;
-        this.treeModel = treeModel;
-        this.fileTree = fileTree;
-    }
+    private final ExecutorService scanExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Markdown Notepad Tree Scan");
+        t.setDaemon(true);
+        return t;
+    });
+    private long scanGeneration;
+    // Paths added or removed while a scan is running, replayed once it is published
+    private List<Path> changesDuringScan;
 
-    public void setCurrentDirectory(Path currentDirectory) {
-        this.currentDirectory = currentDirectory;
+    // Every node below the root and its path on disk, in both directions; only touched on the EDT
+    private Map<Path, DefaultMutableTreeNode> nodesByPath = new HashMap<>();
+    private Map<DefaultMutableTreeNode, Path> pathsByNode = new IdentityHashMap<>();
+
+    // Directories first, then by name ignoring case
+    private static final Comparator<DefaultMutableTreeNode> ENTRY_ORDER =
+        Comparator.comparing((DefaultMutableTreeNode node) -> !(node instanceof DirectoryNode))
+            .thenComparing(TreeOperations::nodeName, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(TreeOperations::nodeName);
+
+    /** A directory whose entries are read from disk when first needed. */
+    static final class DirectoryNode extends DefaultMutableTreeNode {
+        private boolean loaded;
+        private int entryCount = -1;  // entries on disk, counted in the background; -1 until known
+        private List<Runnable> whenLoaded;  // run once the entries are in; non-null while they are read
+
+        DirectoryNode(String name) {
+            super(name);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return loaded || whenLoaded != null ? getChildCount() == 0 : entryCount == 0;
+        }
     }
 
-    public void addDirectoryToTree(Path dir) {
-        if (dir.equals(currentDirectory)) {
-            return; // Skip the root directory
+    /** The only child of a directory whose entries are being read. */
+    static final class LoadingNode extends DefaultMutableTreeNode {
+        LoadingNode() {
+            super(null, false);
         }
 
-        Path relativePath = currentDirectory.relativize(dir);
-        DefaultMutableTreeNode current = rootNode;
-        
-        for (int i = 0; i < relativePath.getNameCount(); i++) {
-            Path subPath = relativePath.getName(i);
-            DefaultMutableTreeNode node = findChildByName(current, subPath.toString());
-            if (node == null) {
-                node = new DefaultMutableTreeNode(subPath.toString());
-                current.add(node);
-            }
-            current = node;
+        @Override
+        public String toString() {
+            return "Loading\u2026";
         }
     }
 
-    public void addFileToTree(Path file) {
-        Path relativePath = currentDirectory.relativize(file);
-        DefaultMutableTreeNode current = rootNode;
-        
-        for (int i = 0; i < relativePath.getNameCount() - 1; i++) {
-            Path subPath = relativePath.getName(i);
-            DefaultMutableTreeNode node = findChildByName(current, subPath.toString());
-            if (node == null) {
-                node = new DefaultMutableTreeNode(subPath.toString());
-                current.add(node);
+    public TreeOperations(DefaultMutableTreeNode rootNode, DefaultTreeModel treeModel, 
+                         JTree fileTree) {
+        this.rootNode = rootNode;
+        this.treeModel = treeModel;
+        this.fileTree = fileTree;
+
+        fileTree.addTreeWillExpandListener(new TreeWillExpandListener() {
+            @Override
+            public void treeWillExpand(TreeExpansionEvent event) {
+                if (event.getPath().getLastPathComponent() instanceof DirectoryNode dir) {
+                    loadChildren(dir, null);
+                }
             }
-            current = node;
-        }
 
-        current.add(new DefaultMutableTreeNode(new FileNode(file)));
+            @Override
+            public void treeWillCollapse(TreeExpansionEvent event) {
+            }
+        });
+    }
+
+    public void setCurrentDirectory(Path currentDirectory) {
+        this.currentDirectory = currentDirectory;
     }
 
     public DefaultMutableTreeNode findChildByName(DefaultMutableTreeNode parent, String name) {
         for (int i = 0; i < parent.getChildCount(); i++) {
             DefaultMutableTreeNode node = (DefaultMutableTreeNode) parent.getChildAt(i);
-            if (node.getUserObject().toString().equals(name)) {
+            if (!(node instanceof LoadingNode) && node.getUserObject().toString().equals(name)) {
                 return node;
             }
         }
         return null;
     }
 
-    public DefaultMutableTreeNode findNodeForPath(Path path) {
-        Enumeration<TreeNode> e = rootNode.depthFirstEnumeration();
-        while (e.hasMoreElements()) {
-            DefaultMutableTreeNode node = (DefaultMutableTreeNode) e.nextElement();
-            if (node.getUserObject() instanceof FileNode) {
-                FileNode fileNode = (FileNode) node.getUserObject();
-                if (fileNode.getPath().equals(path)) {
-                    return node;
-                }
+    /** The node for a file or directory if its directory has been loaded, else null. */
+    public DefaultMutableTreeNode getLoadedNode(Path path) {
+        return nodesByPath.get(path);
+    }
+
+    /**
+     * Hands the node for a file or directory to {@code found}, loading directories
+     * on the way to it first if they have not been yet; then it is called later on
+     * the EDT. It is not called if the path is not in the tree.
+     */
+    public void findNodeForPath(Path path, Consumer<DefaultMutableTreeNode> found) {
+        DefaultMutableTreeNode node = nodesByPath.get(path);
+        if (node != null) {
+            found.accept(node);
+            return;
+        }
+        if (currentDirectory == null || !path.startsWith(currentDirectory)) return;
+        Path ancestor = currentDirectory;
+        for (Path name : currentDirectory.relativize(path)) {
+            ancestor = ancestor.resolve(name);
+            node = nodesByPath.get(ancestor);
+            if (node == null) return;
+            if (node instanceof DirectoryNode dir && !dir.loaded) {
+                loadChildren(dir, () -> findNodeForPath(path, found));
+                return;
             }
         }
-        return null;
     }
 
     public Path getNodePath(DefaultMutableTreeNode node) {
+        if (node == rootNode) {
+            return currentDirectory;
+        }
+        Path indexed = pathsByNode.get(node);
+        if (indexed != null) {
+            return indexed;
+        }
+
+        // A node no longer in the tree, e.g. held by a drag that outlived a refresh
         List<String> pathParts = new ArrayList<>();
         DefaultMutableTreeNode current = node;
         
@@ -117,70 +188,306 @@ public class TreeOperations {
         return fileTree.getExpandedDescendants(root);
     }
 
+    /** Expands the directories matching paths expanded in an earlier tree, as they load. */
     public void restoreExpandedPaths(Enumeration<TreePath> paths) {
         if (paths != null) {
             while (paths.hasMoreElements()) {
-                TreePath path = paths.nextElement();
-                TreePath newPath = findMatchingPath(path);
-                if (newPath != null) {
-                    fileTree.expandPath(newPath);
+                expandMatchingPath(rootNode, paths.nextElement().getPath(), 1);
+            }
+        }
+    }
+
+    private void expandMatchingPath(DefaultMutableTreeNode current, Object[] oldObjects, int index) {
+        if (index == oldObjects.length) {
+            fileTree.expandPath(new TreePath(current.getPath()));
+            return;
+        }
+        Runnable next = () -> {
+            DefaultMutableTreeNode child = findChildByName(current, oldObjects[index].toString());
+            if (child != null) {
+                expandMatchingPath(child, oldObjects, index + 1);
+            }
+        };
+        if (current instanceof DirectoryNode dir) {
+            loadChildren(dir, next);
+        } else {
+            next.run();
+        }
+    }
+
+    /**
+     * Rebuilds the tree from disk in the background. Must be called on the EDT;
+     * a newer refresh supersedes one still running. Expanded directories are
+     * read again as they are re-expanded.
+     */
+    public void refreshTree() {
+        if (currentDirectory == null) return;
+        Path collection = currentDirectory;
+        long generation = ++scanGeneration;
+        if (changesDuringScan == null) changesDuringScan = new ArrayList<>();
+        scanExecutor.execute(() -> {
+            Map<Path, DefaultMutableTreeNode> children = listDirectory(collection, collection);
+            SwingUtilities.invokeLater(() -> {
+                if (generation == scanGeneration) publishTree(collection, children);
+            });
+        });
+    }
+
+    private void publishTree(Path collection, Map<Path, DefaultMutableTreeNode> children) {
+        Enumeration<TreePath> expandedPaths = getExpandedPaths();
+
+        rootNode.removeAllChildren();
+        rootNode.setUserObject(collection.getFileName().toString());
+        nodesByPath = new HashMap<>();
+        pathsByNode = new IdentityHashMap<>();
+        children.forEach((path, node) -> {
+            rootNode.add(node);
+            index(path, node);
+        });
+
+        treeModel.reload();
+        fileTree.expandRow(0);
+        restoreExpandedPaths(expandedPaths);
+        countEntriesLater(children.values());
+
+        // The listing may have been read before one of these changes landed
+        List<Path> changes = changesDuringScan;
+        changesDuringScan = null;
+        for (Path path : changes) {
+            if (Files.exists(path)) {
+                addPath(path);
+            } else {
+                removePath(path);
+            }
+        }
+    }
+
+    /**
+     * Reads a directory's entries into the tree on the scan thread the first time
+     * they are needed, then runs {@code then}, if given, on the EDT. It runs right
+     * away if they are already in, and not at all if the directory leaves the
+     * tree before they arrive.
+     */
+    private void loadChildren(DirectoryNode dir, Runnable then) {
+        if (dir.loaded) {
+            if (then != null) then.run();
+            return;
+        }
+        if (dir.whenLoaded != null) {
+            if (then != null) dir.whenLoaded.add(then);
+            return;
+        }
+        Path path = pathsByNode.get(dir);
+        if (path == null || currentDirectory == null) return;
+        dir.whenLoaded = new ArrayList<>();
+        if (then != null) dir.whenLoaded.add(then);
+        treeModel.insertNodeInto(new LoadingNode(), dir, 0);
+
+        Path collection = currentDirectory;
+        scanExecutor.execute(() -> {
+            Map<Path, DefaultMutableTreeNode> children = listDirectory(collection, path);
+            SwingUtilities.invokeLater(() -> publishChildren(dir, path, children));
+        });
+    }
+
+    private void publishChildren(DirectoryNode dir, Path path, Map<Path, DefaultMutableTreeNode> children) {
+        List<Runnable> whenLoaded = dir.whenLoaded;
+        dir.whenLoaded = null;
+        // Removed, moved or replaced by a refresh while it was read
+        if (!path.equals(pathsByNode.get(dir))) return;
+
+        dir.removeAllChildren();
+        children.forEach((child, node) -> {
+            dir.add(node);
+            index(child, node);
+        });
+        dir.loaded = true;
+        dir.entryCount = children.size();
+        treeModel.nodeStructureChanged(dir);
+        countEntriesLater(children.values());
+        whenLoaded.forEach(Runnable::run);
+    }
+
+    /**
+     * Builds detached nodes for a directory's entries in tree order.
+     * Subdirectories are left unloaded.
+     */
+    private static Map<Path, DefaultMutableTreeNode> listDirectory(Path collection, Path directory) {
+        Map<DefaultMutableTreeNode, Path> entries = new IdentityHashMap<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.forEach(path -> {
+                if (FileOperations.isCachePath(collection, path)) return;
+                if (Files.isDirectory(path)) {
+                    entries.put(new DirectoryNode(path.getFileName().toString()), path);
+                } else if (Files.isRegularFile(path) && isShownFile(path)) {
+                    entries.put(new DefaultMutableTreeNode(new FileNode(path)), path);
                 }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            Msg.error(TreeOperations.class, "Could not list " + directory, e);
+        }
+        Map<Path, DefaultMutableTreeNode> sorted = new LinkedHashMap<>();
+        entries.keySet().stream().sorted(ENTRY_ORDER).forEach(node -> sorted.put(entries.get(node), node));
+        return sorted;
+    }
+
+    private static String nodeName(DefaultMutableTreeNode node) {
+        return node.getUserObject() instanceof FileNode file
+            ? file.getPath().getFileName().toString()
+            : String.valueOf(node.getUserObject());
+    }
+
+    /** Where a new child goes among a directory's entries to keep them in order. */
+    private static int insertionIndex(DefaultMutableTreeNode parent, DefaultMutableTreeNode child) {
+        int index = 0;
+        while (index < parent.getChildCount()) {
+            DefaultMutableTreeNode existing = (DefaultMutableTreeNode) parent.getChildAt(index);
+            if (!(existing instanceof LoadingNode) && ENTRY_ORDER.compare(existing, child) > 0) break;
+            index++;
+        }
+        return index;
+    }
+
+    /** Counts the entries of unloaded directories on the scan thread, then repaints their rows. */
+    private void countEntriesLater(Iterable<? extends TreeNode> nodes) {
+        Map<DirectoryNode, Path> pending = new IdentityHashMap<>();
+        for (TreeNode node : nodes) {
+            if (node instanceof DirectoryNode dir && !dir.loaded) {
+                Path path = pathsByNode.get(dir);
+                if (path != null) pending.put(dir, path);
             }
         }
+        if (pending.isEmpty() || currentDirectory == null) return;
+        Path collection = currentDirectory;
+        long generation = scanGeneration;
+        scanExecutor.execute(() -> {
+            Map<DirectoryNode, Integer> counts = new IdentityHashMap<>();
+            pending.forEach((dir, path) -> counts.put(dir, countEntries(collection, path)));
+            SwingUtilities.invokeLater(() -> {
+                if (generation != scanGeneration) return;
+                counts.forEach((dir, count) -> {
+                    if (dir.loaded || dir.getParent() == null) return;
+                    dir.entryCount = count;
+                    treeModel.nodeChanged(dir);
+                });
+            });
+        });
+    }
+
+    private static int countEntries(Path collection, Path directory) {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return (int) entries
+                .filter(p -> !FileOperations.isCachePath(collection, p))
+                .filter(p -> Files.isDirectory(p) || isShownFile(p))
+                .count();
+        } catch (IOException | UncheckedIOException e) {
+            return -1;
+        }
+    }
+
+    private void index(Path path, DefaultMutableTreeNode node) {
+        nodesByPath.put(path, node);
+        pathsByNode.put(node, path);
+    }
+
+    /** Markdown notes and the image types the preview can show. */
+    public static boolean isShownFile(Path file) {
+        String name = file.toString().toLowerCase();
+        return name.endsWith(".md") || 
+            name.endsWith(".png") || 
+            name.endsWith(".jpg") || 
+            name.endsWith(".jpeg") || 
+            name.endsWith(".gif");
     }
 
-    private TreePath findMatchingPath(TreePath oldPath) {
-        Object[] oldObjects = oldPath.getPath();
+    /**
+     * Inserts the node for a file or directory that now exists on disk, creating
+     * missing parent directory nodes. Nothing is inserted below a directory that
+     * has not been loaded; it reads the path from disk when it is. Paths already
+     * in the tree are left alone, so the same change may be reported more than once.
+     */
+    public void addPath(Path path) {
+        if (changesDuringScan != null) changesDuringScan.add(path);
+        if (currentDirectory == null || !path.startsWith(currentDirectory)
+                || path.equals(currentDirectory)
+                || FileOperations.isCachePath(currentDirectory, path)
+                || !Files.exists(path)) {
+            return;
+        }
+        boolean directory = Files.isDirectory(path);
+        if (!directory && !isShownFile(path)) {
+            return;
+        }
+
+        Path relativePath = currentDirectory.relativize(path);
         DefaultMutableTreeNode current = rootNode;
-        List<Object> newObjects = new ArrayList<>();
-        newObjects.add(current);
-        
-        for (int i = 1; i < oldObjects.length; i++) {
-            String nodeName = oldObjects[i].toString();
-            DefaultMutableTreeNode child = findChildByName(current, nodeName);
-            if (child == null) {
-                return null;
+        Path currentPath = currentDirectory;
+        for (int i = 0; i < relativePath.getNameCount(); i++) {
+            String name = relativePath.getName(i).toString();
+            currentPath = currentPath.resolve(name);
+            if (current instanceof DirectoryNode dir && !dir.loaded) {
+                if (dir.whenLoaded != null) {
+                    // The listing being read may predate the path
+                    dir.whenLoaded.add(() -> addPath(path));
+                    return;
+                }
+                dir.entryCount = -1;
+                countEntriesLater(List.of(dir));
+                return;
             }
-            current = child;
-            newObjects.add(child);
+            DefaultMutableTreeNode node = nodesByPath.get(currentPath);
+            if (node == null) {
+                boolean leaf = i == relativePath.getNameCount() - 1 && !directory;
+                node = leaf ? new DefaultMutableTreeNode(new FileNode(path))
+                            : new DirectoryNode(name);
+                treeModel.insertNodeInto(node, current, insertionIndex(current, node));
+                index(currentPath, node);
+                countEntriesLater(List.of(node));
+            }
+            current = node;
         }
-        
-        return new TreePath(newObjects.toArray());
     }
 
-    public void refreshTree() {
-        if (currentDirectory != null) {
-            Enumeration<TreePath> expandedPaths = getExpandedPaths();
-            
-            // Clear and reload the tree
-            rootNode.removeAllChildren();
-            rootNode.setUserObject(currentDirectory.getFileName().toString());
-
-            try {
-                // First, create the directory structure
-                Files.walk(currentDirectory)
-                    .filter(Files::isDirectory)
-                    .forEach(this::addDirectoryToTree);
-
-                // Then add both markdown and image files
-                Files.walk(currentDirectory)
-                    .filter(Files::isRegularFile)
-                    .filter(p -> {
-                        String name = p.toString().toLowerCase();
-                        return name.endsWith(".md") || 
-                            name.endsWith(".png") || 
-                            name.endsWith(".jpg") || 
-                            name.endsWith(".jpeg") || 
-                            name.endsWith(".gif");
-                    })
-                    .forEach(this::addFileToTree);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /** Removes the node for a file or directory that no longer exists on disk. */
+    public void removePath(Path path) {
+        if (changesDuringScan != null) changesDuringScan.add(path);
+        if (currentDirectory == null || !path.startsWith(currentDirectory)
+                || path.equals(currentDirectory) || Files.exists(path)) {
+            return;
+        }
+        DefaultMutableTreeNode node = nodesByPath.get(path);
+        if (node != null) {
+            Enumeration<TreeNode> subtree = node.depthFirstEnumeration();
+            while (subtree.hasMoreElements()) {
+                Path removed = pathsByNode.remove(subtree.nextElement());
+                if (removed != null) nodesByPath.remove(removed);
+            }
+            treeModel.removeNodeFromParent(node);
+        } else if (nodesByPath.get(path.getParent()) instanceof DirectoryNode dir && !dir.loaded) {
+            if (dir.whenLoaded != null) {
+                dir.whenLoaded.add(() -> removePath(path));
+            } else {
+                // Inside a directory not read yet; only its entry count changes
+                countEntriesLater(List.of(dir));
             }
-            
-            treeModel.reload();
-            fileTree.expandRow(0);
-            restoreExpandedPaths(expandedPaths);
+        }
+    }
+
+    /** Moves a node after its file or directory was moved on disk, keeping directories expanded. */
+    public void movePath(Path from, Path to) {
+        List<Path> expanded = new ArrayList<>();
+        DefaultMutableTreeNode node = nodesByPath.get(from);
+        if (node != null) {
+            Enumeration<TreePath> paths = fileTree.getExpandedDescendants(new TreePath(node.getPath()));
+            while (paths != null && paths.hasMoreElements()) {
+                Path path = pathsByNode.get((DefaultMutableTreeNode) paths.nextElement().getLastPathComponent());
+                if (path != null) expanded.add(from.relativize(path));
+            }
+        }
+        removePath(from);
+        addPath(to);
+        for (Path relative : expanded) {
+            findNodeForPath(to.resolve(relative), moved -> fileTree.expandPath(new TreePath(moved.getPath())));
         }
     }
 
@@ -198,16 +505,7 @@ public class TreeOperations {
                 Path path = ((FileNode) userObject).getPath();
                 return path.getParent();
             } else if (userObject instanceof String) {
-                if (node == rootNode) {
-                    return currentDirectory;
-                } else {
-                    StringBuilder pathBuilder = new StringBuilder();
-                    Object[] path = node.getUserObjectPath();
-                    for (int i = 1; i < path.length; i++) {
-                        pathBuilder.append(path[i].toString()).append(File.separator);
-                    }
-                    return currentDirectory.resolve(pathBuilder.toString());
-                }
+                return getNodePath(node);
             }
             node = (DefaultMutableTreeNode) node.getParent();
         }